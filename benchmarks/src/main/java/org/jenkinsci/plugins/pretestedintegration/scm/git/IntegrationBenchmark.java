@@ -0,0 +1,290 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.jenkinsci.plugins.pretestedintegration.Commit;
+import org.jenkinsci.plugins.pretestedintegration.IntegrationStrategy;
+import org.jenkinsci.plugins.pretestedintegration.PretestedIntegrationAction;
+import org.jenkinsci.plugins.pretestedintegration.exceptions.EstablishWorkspaceException;
+import org.jenkinsci.plugins.pretestedintegration.exceptions.IntegationFailedExeception;
+import org.jenkinsci.plugins.pretestedintegration.exceptions.NothingToDoException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the strategies and the bridge end to end against a generated
+ * local repository, see {@link RepositoryGenerator}. The workspace is reset
+ * to the integration branch before every invocation, and each invocation
+ * integrates the next ready branch in turn.
+ *
+ * Run with: java -jar target/benchmarks.jar
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IntegrationBenchmark {
+
+    private static final AtomicInteger builds = new AtomicInteger();
+
+    /**
+     * The generated repository and a clone of it, shared by all invocations.
+     */
+    @State(Scope.Benchmark)
+    public static class Repositories {
+
+        @Param({ "1000" })
+        public int files;
+
+        @Param({ "200" })
+        public int depth;
+
+        @Param({ "20" })
+        public int branches;
+
+        @Param({ "0.0", "0.25" })
+        public double conflictRate;
+
+        @Param({ GitBackend.CLI, GitBackend.JGIT })
+        public String backend;
+
+        File dir;
+        File workspace;
+
+        @Setup(Level.Trial)
+        public void generate() throws Exception {
+            dir = File.createTempFile("pretested-benchmark", "");
+            dir.delete();
+            File origin = new RepositoryGenerator(files, depth, branches, conflictRate, 42).generate(dir);
+            workspace = new File(dir, "workspace");
+            Repository clone = Git.cloneRepository().setURI(origin.toURI().toString()).setDirectory(workspace).call().getRepository();
+            try {
+                StoredConfig config = clone.getConfig();
+                config.setString("user", null, "name", "Benchmark");
+                config.setString("user", null, "email", "benchmark@example.com");
+                config.save();
+            } finally {
+                clone.close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * A build of the next ready branch, on a workspace reset to the tip of
+     * the integration branch before every invocation.
+     */
+    public abstract static class Fixture {
+
+        int next;
+        AbstractBuild<?, ?> build;
+        Launcher launcher;
+        BuildListener listener;
+
+        /**
+         * @param merge true to also merge the ready branch without committing,
+         * for rollback to undo
+         */
+        void prepare(Repositories repositories, boolean merge) throws Exception {
+            String ready = String.format("origin/%s%d", RepositoryGenerator.READY, next++ % repositories.branches);
+            listener = new StreamBuildListener(new NullOutputStream());
+            launcher = new Launcher.LocalLauncher(listener);
+
+            Git git = Git.open(repositories.workspace);
+            try {
+                git.checkout().setName(Constants.MASTER).setForce(true).call();
+                git.reset().setMode(ResetCommand.ResetType.HARD).setRef("origin/" + Constants.MASTER).call();
+                git.clean().setCleanDirectories(true).call();
+                build = build(git.getRepository(), repositories.workspace, ready);
+                if (merge) {
+                    git.merge().include(git.getRepository().resolve(ready)).setSquash(true).call();
+                }
+            } finally {
+                git.getRepository().close();
+            }
+        }
+
+        /**
+         * Give back what the build took, as the end of a build does.
+         */
+        void finish() {
+            WorktreePool.release(build);
+            IntegrationLocks.release(build);
+            IntegrationSession.end(build);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Clean extends Fixture {
+
+        @Setup(Level.Invocation)
+        public void setup(Repositories repositories) throws Exception {
+            prepare(repositories, false);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            finish();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Merged extends Fixture {
+
+        @Setup(Level.Invocation)
+        public void setup(Repositories repositories) throws Exception {
+            prepare(repositories, true);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            finish();
+        }
+    }
+
+    /**
+     * A build of the ready branch, keeping the actions added to it as a real
+     * build would.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static AbstractBuild<?, ?> build(Repository repo, File workspace, String ready) throws IOException {
+        ObjectId readySha = repo.resolve(ready);
+        ObjectId tip = repo.resolve(Constants.HEAD);
+
+        BuildData data = new BuildData();
+        data.lastBuild = new Build(new Revision(readySha, Collections.singletonList(new Branch(ready, readySha))), 1, Result.SUCCESS);
+        PretestedIntegrationAction integration = mock(PretestedIntegrationAction.class);
+        doReturn(new Commit<String>(tip.getName())).when(integration).getCurrentIntegrationTip();
+
+        final Map<Class<?>, Action> actions = new HashMap<Class<?>, Action>();
+        actions.put(BuildData.class, data);
+        actions.put(PretestedIntegrationAction.class, integration);
+
+        GitSCM scm = mock(GitSCM.class);
+        doReturn(Collections.emptyList()).when(scm).getUserRemoteConfigs();
+        FreeStyleProject project = mock(FreeStyleProject.class);
+        doReturn(scm).when(project).getScm();
+
+        AbstractBuild build = mock(AbstractBuild.class);
+        doAnswer(new Answer<Action>() {
+            public Action answer(InvocationOnMock invocation) {
+                return actions.get(invocation.getArguments()[0]);
+            }
+        }).when(build).getAction(any(Class.class));
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                Action action = (Action) invocation.getArguments()[0];
+                actions.put(action.getClass(), action);
+                return null;
+            }
+        }).when(build).addAction(any(Action.class));
+        doReturn(new FilePath(workspace)).when(build).getWorkspace();
+        doReturn("").when(build).getBuiltOnStr();
+        doReturn(project).when(build).getParent();
+        doReturn(project).when(build).getProject();
+        doReturn(Result.SUCCESS).when(build).getResult();
+        doReturn("benchmark#" + builds.incrementAndGet()).when(build).getExternalizableId();
+        return build;
+    }
+
+    static GitBridge bridge(IntegrationStrategy strategy, String backend) {
+        GitBridge bridge = new GitBridge(strategy, Constants.MASTER) {
+            @Override
+            String getGitExe(AbstractBuild<?, ?> build, TaskListener listener) {
+                return "git";
+            }
+        };
+        bridge.setBackend(backend);
+        return bridge;
+    }
+
+    /**
+     * Establish the integration branch and integrate, as a build does. With
+     * JGit both happen in the one {@link IntegrationSequence} call the squash
+     * and accumulated strategies then report.
+     */
+    private static String integrate(IntegrationStrategy strategy, Repositories repositories, Fixture fixture) throws EstablishWorkspaceException {
+        GitBridge bridge = bridge(strategy, repositories.backend);
+        bridge.ensureBranch(fixture.build, fixture.launcher, fixture.listener, Constants.MASTER);
+        try {
+            strategy.integrate(fixture.build, fixture.launcher, fixture.listener, bridge, null);
+            return "integrated";
+        } catch (IntegationFailedExeception ex) {
+            return "conflict";
+        } catch (NothingToDoException ex) {
+            return "nothing to do";
+        }
+    }
+
+    @Benchmark
+    public String squashIntegrate(Repositories repositories, Clean fixture) throws EstablishWorkspaceException {
+        return integrate(new SquashCommitStrategy(), repositories, fixture);
+    }
+
+    @Benchmark
+    public String accumulatedIntegrate(Repositories repositories, Clean fixture) throws EstablishWorkspaceException {
+        return integrate(new AccumulatedCommitStrategy(), repositories, fixture);
+    }
+
+    @Benchmark
+    public void rollback(Repositories repositories, Merged fixture) throws Exception {
+        bridge(new SquashCommitStrategy(), repositories.backend).rollback(fixture.build, fixture.launcher, fixture.listener);
+    }
+
+    @Benchmark
+    public Commit<?> determineIntegrationHead(Repositories repositories, Clean fixture) {
+        return bridge(new SquashCommitStrategy(), repositories.backend).determineIntegrationHead(fixture.build, fixture.launcher, fixture.listener);
+    }
+}
@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.RefSpec;
+
+/**
+ * Generates a local bare repository to integrate against. The master branch
+ * has the given number of files and commits, and each ready branch changes one
+ * line of one file. For the share of ready branches given by the conflict
+ * rate, master changes the same line after the branches were made, so
+ * merging them conflicts. The same seed gives the same repository.
+ */
+public final class RepositoryGenerator {
+
+    static final int LINES = 40;
+    static final String READY = "ready/";
+
+    private final int files;
+    private final int depth;
+    private final int branches;
+    private final double conflictRate;
+    private final Random random;
+
+    public RepositoryGenerator(int files, int depth, int branches, double conflictRate, long seed) {
+        this.files = files;
+        this.depth = depth;
+        this.branches = branches;
+        this.conflictRate = conflictRate;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generate the repository in dir/origin.git.
+     *
+     * @return The bare repository
+     */
+    public File generate(File dir) throws IOException, GitAPIException {
+        File work = new File(dir, "seed");
+        File origin = new File(dir, "origin.git");
+        Git git = Git.init().setDirectory(work).call();
+        try {
+            for (int f = 0; f < files; f++) {
+                write(work, f, -1, "initial");
+            }
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("Initial commit").call();
+
+            for (int c = 1; c < depth; c++) {
+                int f = random.nextInt(files);
+                write(work, f, random.nextInt(LINES), "history " + c);
+                git.add().addFilepattern(name(f)).call();
+                git.commit().setMessage("History " + c).call();
+            }
+
+            List<int[]> conflicting = new ArrayList<int[]>();
+            for (int b = 0; b < branches; b++) {
+                int f = random.nextInt(files);
+                int line = random.nextInt(LINES);
+                git.checkout().setCreateBranch(true).setName(READY + b).setStartPoint(Constants.MASTER).call();
+                write(work, f, line, "ready " + b);
+                git.add().addFilepattern(name(f)).call();
+                git.commit().setMessage("Ready " + b).call();
+                git.checkout().setName(Constants.MASTER).call();
+                if (random.nextDouble() < conflictRate) {
+                    conflicting.add(new int[] { f, line });
+                }
+            }
+
+            if (!conflicting.isEmpty()) {
+                for (int[] change : conflicting) {
+                    write(work, change[0], change[1], "moved on");
+                    git.add().addFilepattern(name(change[0])).call();
+                }
+                git.commit().setMessage("Master moved on").call();
+            }
+
+            Git.init().setBare(true).setDirectory(origin).call().getRepository().close();
+            git.push().setRemote(origin.toURI().toString()).setRefSpecs(new RefSpec("refs/heads/*:refs/heads/*")).call();
+        } finally {
+            git.getRepository().close();
+        }
+        return origin;
+    }
+
+    private static String name(int f) {
+        return String.format("src/file%05d.txt", f);
+    }
+
+    /**
+     * Replace the given line of file f with the text, creating the file if
+     * missing. A negative line only creates the file.
+     */
+    private static void write(File work, int f, int line, String text) throws IOException {
+        File file = new File(work, name(f));
+        List<String> lines = new ArrayList<String>();
+        if (file.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                for (String l = r.readLine(); l != null; l = r.readLine()) {
+                    lines.add(l);
+                }
+            } finally {
+                r.close();
+            }
+        } else {
+            file.getParentFile().mkdirs();
+            for (int l = 0; l < LINES; l++) {
+                lines.add(String.format("file %d line %d", f, l));
+            }
+        }
+        if (line >= 0) {
+            lines.set(line, text);
+        }
+
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (String l : lines) {
+                w.write(l);
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+    }
+}
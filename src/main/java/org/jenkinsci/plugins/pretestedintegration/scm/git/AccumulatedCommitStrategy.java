@@ -11,13 +11,9 @@ import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.plugins.git.Branch;
-import hudson.plugins.git.util.BuildData;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.jenkinsci.plugins.gitclient.Git;
-import org.jenkinsci.plugins.gitclient.GitClient;
 import org.jenkinsci.plugins.pretestedintegration.AbstractSCMBridge;
 import org.jenkinsci.plugins.pretestedintegration.Commit;
 import org.jenkinsci.plugins.pretestedintegration.exceptions.IntegationFailedExeception;
@@ -41,61 +37,69 @@ public class AccumulatedCommitStrategy extends IntegrationStrategy {
 
     @Override
     public void integrate(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener, AbstractSCMBridge bridge, Commit<?> commit) throws IntegationFailedExeception, NothingToDoException {
-        int exitCode = -999;
-        GitBridge gitbridge = (GitBridge)bridge;
-        
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        BuildData gitBuildData = build.getAction(BuildData.class);
-        Branch gitDataBranch = gitBuildData.lastBuild.revision.getBranches().iterator().next();
-        boolean found = false;
-        
+        long start = System.currentTimeMillis();
         try {
-            GitClient client = Git.with(listener, build.getEnvironment(listener)).in(build.getWorkspace()).getClient();                
-            for(Branch b : client.getRemoteBranches()) {
-                if(b.getName().equals(gitDataBranch.getName())) {                    
-                    found = true;
-                    break;
-                }
+            int exitCode = -999;
+            GitBridge gitbridge = (GitBridge)bridge;
+            if(gitbridge.applyAgentOutcome(build, listener)) {
+                gitbridge.checkoutIntegration(build, launcher, listener);
+                return;
             }
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, "GitClient error", ex);
-            throw new IntegationFailedExeception("GitClient error, unspecified", ex);
-        }
         
-        if(!found) {
+            GitOutput out = new GitOutput(listener.getLogger());
+            IntegrationSession session = IntegrationSession.of(build);
+            gitbridge.checkAlreadyIntegrated(build, launcher, listener, session.getReadySha());
+            Branch gitDataBranch = session.getReadyBranch();
+            boolean found = false;
+
             try {
-                build.setDescription(String.format("Noting to do"));
+                RefIndex refs = RefIndex.of(build, gitbridge.backend(build, launcher, listener));
+                found = refs.getRemoteBranch(gitDataBranch.getName()) != null;
             } catch (Exception ex) {
-                logger.log(Level.FINE, "Failed to update description", ex);
+                logger.log(Level.SEVERE, "GitClient error", ex);
+                throw new IntegationFailedExeception("GitClient error, unspecified", ex);
             }
-            throw new NothingToDoException();
-        }
         
-        String integrationSHA = "Not specified";
-        try {
-            integrationSHA = (String)build.getAction(PretestedIntegrationAction.class).getCurrentIntegrationTip().getId();
-        } catch (Exception ex) {
+            if(!found) {
+                try {
+                    build.setDescription(String.format("Noting to do"));
+                } catch (Exception ex) {
+                    logger.log(Level.FINE, "Failed to update description", ex);
+                }
+                throw new NothingToDoException();
+            }
+
+            String integrationSHA = "Not specified";
+            try {
+                integrationSHA = (String)build.getAction(PretestedIntegrationAction.class).getCurrentIntegrationTip().getId();
+            } catch (Exception ex) {
             
-        }
+            }
 
-        listener.getLogger().println( String.format( "Preparing to merge changes in commit %s to integration branch %s", (String) commit.getId(), gitbridge.getBranch() ) );
-        try {
-            exitCode = gitbridge.git(build, launcher, listener, out, "merge","-m", String.format("Integrated %s", gitDataBranch.getName()), (String) commit.getId(), "--no-ff");
-        } catch (Exception ex) {
-            throw new IntegationFailedExeception(ex);
-        }
-        
-        if (exitCode > 0) {
-            listener.getLogger().println("Failed to merge changes.");
-            listener.getLogger().println(out.toString());
+            listener.getLogger().println( String.format( "Preparing to merge changes in commit %s to integration branch %s", (String) commit.getId(), gitbridge.getBranch() ) );
+            gitbridge.checkForConflicts(build, launcher, listener, (String) commit.getId());
             try {
-                build.setDescription(String.format("Merge conflict"));
-            }  catch (IOException ex) {
+                exitCode = gitbridge.backend(build, launcher, listener).mergeNoFastForward((String) commit.getId(), String.format("Integrated %s", gitDataBranch.getName()), out);
+            } catch (Exception ex) {
                 throw new IntegationFailedExeception(ex);
             }
-            throw new IntegationFailedExeception();
-        }
         
+            if (exitCode > 0) {
+                listener.getLogger().println("Failed to merge changes. Conflicting files below");
+                for(String path : out.getConflicts()) {
+                    listener.getLogger().println(path);
+                }
+                try {
+                    build.setDescription(String.format("Merge conflict"));
+                }  catch (IOException ex) {
+                    throw new IntegationFailedExeception(ex);
+                }
+                throw new IntegationFailedExeception();
+            }
+            gitbridge.checkoutIntegration(build, launcher, listener);
+        } finally {
+            IntegrationTimings.record(build, "integrate", start);
+        }
     }
     
     @Extension
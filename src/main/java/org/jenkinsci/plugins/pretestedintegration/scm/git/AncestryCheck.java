@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Tells whether a commit is reachable from a tip, which means it has already
+ * been integrated. Only commit headers are parsed while walking, newest
+ * first, and the walk stops at commits older than the commit by more than
+ * {@link #CLOCK_SKEW_SECONDS}, rather than walking the whole history when
+ * the commit is not reachable. A descendant committed on a clock even
+ * further behind can make a reachable commit look unreachable, which only
+ * leaves the decision to the merge.
+ */
+public class AncestryCheck implements RepositoryCallback<Boolean> {
+
+    /** How far behind the commit a descendant's commit time may be */
+    static final int CLOCK_SKEW_SECONDS = 24 * 60 * 60;
+
+    private final String commit;
+    private final String tip;
+
+    public AncestryCheck(String commit, String tip) {
+        this.commit = commit;
+        this.tip = tip;
+    }
+
+    public Boolean invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+        return isAncestor(repo, commit, tip);
+    }
+
+    static boolean isAncestor(Repository repo, String commit, String tip) throws IOException {
+        ObjectId commitId = JGitBackend.resolve(repo, commit);
+        ObjectId tipId = JGitBackend.resolve(repo, tip);
+        if (commitId.equals(tipId)) {
+            return true;
+        }
+        RevWalk walk = new RevWalk(repo);
+        try {
+            walk.setRetainBody(false);
+            RevCommit target = walk.parseCommit(commitId);
+            walk.markStart(walk.parseCommit(tipId));
+            walk.sort(RevSort.COMMIT_TIME_DESC);
+            walk.setRevFilter(CommitTimeRevFilter.after((target.getCommitTime() - (long) CLOCK_SKEW_SECONDS) * 1000));
+            for (RevCommit c : walk) {
+                if (c.equals(target)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            walk.release();
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,276 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Deletes integrated branches on the remote in batches, off the build. Branch
+ * names are queued per workspace and pushed as deletions in one push, once a
+ * batch is full or when the flusher runs. The outcome is read per branch, so
+ * one rejected deletion does not fail the rest of the batch. Failed deletions
+ * are retried a few times before they are given up on.
+ */
+public final class BranchDeletionQueue {
+
+    static final int BATCH_SIZE = 20;
+    static final int MAX_ATTEMPTS = 3;
+    /** How git reports the deletion of a branch the remote does not have */
+    static final String NO_SUCH_REF = "remote ref does not exist";
+
+    private static final Map<String, Batch> batches = new HashMap<String, Batch>();
+    private static final Logger logger = Logger.getLogger(BranchDeletionQueue.class.getName());
+
+    private BranchDeletionQueue() { }
+
+    /**
+     * Queue the deletion of a branch.
+     *
+     * @param workspace A workspace with a clone of the repository
+     * @param gitExe The git executable to push with, null to push in-process
+     * with JGit
+     * @param remote The remote to delete the branch from
+     * @param branch The branch name on the remote
+     */
+    public static void enqueue(FilePath workspace, String gitExe, String remote, String branch) {
+        String key = String.format("%s:%s:%s", workspace.getChannel(), workspace.getRemote(), remote);
+        boolean full;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(workspace, gitExe, remote);
+                batches.put(key, batch);
+            }
+            batch.add(branch, 0);
+            full = batch.size() >= BATCH_SIZE;
+        }
+        if (full) {
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The number of branches waiting to be deleted
+     */
+    public static int size() {
+        int size = 0;
+        synchronized (batches) {
+            for (Batch batch : batches.values()) {
+                size += batch.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Push all queued deletions, one push per workspace and remote.
+     */
+    public static void flush() {
+        List<Batch> pending;
+        synchronized (batches) {
+            pending = new ArrayList<Batch>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : pending) {
+            List<String> failed;
+            try {
+                failed = batch.push();
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, String.format("Failed to delete branches %s", batch.branches.keySet()), ex);
+                failed = new ArrayList<String>(batch.branches.keySet());
+            }
+            requeue(batch, failed);
+        }
+    }
+
+    private static void requeue(Batch batch, List<String> failed) {
+        synchronized (batches) {
+            for (String branch : failed) {
+                int attempts = batch.branches.get(branch) + 1;
+                if (attempts >= MAX_ATTEMPTS) {
+                    logger.warning(String.format("Giving up deleting branch %s after %d attempts", branch, attempts));
+                    continue;
+                }
+                String key = String.format("%s:%s:%s", batch.workspace.getChannel(), batch.workspace.getRemote(), batch.remote);
+                Batch retry = batches.get(key);
+                if (retry == null) {
+                    retry = new Batch(batch.workspace, batch.gitExe, batch.remote);
+                    batches.put(key, retry);
+                }
+                retry.add(branch, attempts);
+            }
+        }
+    }
+
+    /**
+     * Read the outcome of each deletion from the output of git push
+     * --porcelain, a line per ref of the form flag, tab, from:to, tab and
+     * summary. Branches the remote no longer has count as deleted, as with
+     * JGit. Branches without a line, as when the push failed altogether,
+     * count as failed.
+     *
+     * @return The branches that could not be deleted
+     */
+    static List<String> failedDeletions(String output, Collection<String> branches) {
+        Map<String, String> results = new HashMap<String, String>();
+        for (String line : output.split("\\r?\\n")) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length == 3 && fields[1].startsWith(":")) {
+                results.put(fields[1].substring(1), fields[0] + "\t" + fields[2]);
+            }
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (String branch : branches) {
+            String result = results.get(Constants.R_HEADS + branch);
+            if (result == null) {
+                if (!output.contains(String.format("unable to delete '%s': %s", branch, NO_SUCH_REF))
+                        && !output.contains(String.format("unable to delete '%s%s': %s", Constants.R_HEADS, branch, NO_SUCH_REF))) {
+                    failed.add(branch);
+                }
+            } else if (!result.startsWith("-") && !result.startsWith("=") && !result.contains(NO_SUCH_REF)) {
+                failed.add(branch);
+            }
+        }
+        return failed;
+    }
+
+    private static final class Batch {
+
+        final FilePath workspace;
+        final String gitExe;
+        final String remote;
+        /** Branch name to the number of failed attempts */
+        final Map<String, Integer> branches = new HashMap<String, Integer>();
+
+        Batch(FilePath workspace, String gitExe, String remote) {
+            this.workspace = workspace;
+            this.gitExe = gitExe;
+            this.remote = remote;
+        }
+
+        void add(String branch, int attempts) {
+            branches.put(branch, attempts);
+        }
+
+        int size() {
+            return branches.size();
+        }
+
+        /**
+         * @return The branches that could not be deleted
+         */
+        List<String> push() throws IOException, InterruptedException {
+            GitOutput out = new GitOutput();
+            StreamTaskListener listener = new StreamTaskListener(out);
+            if (gitExe == null) {
+                return Git.with(listener, new EnvVars()).in(workspace).using(GitBackend.JGIT).getClient()
+                        .withRepository(new DeleteBranches(remote, new ArrayList<String>(branches.keySet())));
+            }
+
+            ArgumentListBuilder args = new ArgumentListBuilder(gitExe, "push", "--porcelain", remote);
+            for (String branch : branches.keySet()) {
+                args.add(":" + Constants.R_HEADS + branch);
+            }
+            int exitCode = workspace.createLauncher(listener).launch().cmds(args).pwd(workspace).stdout(out).join();
+            List<String> failed = failedDeletions(out.toString(), branches.keySet());
+            if (exitCode != 0 || !failed.isEmpty()) {
+                logger.warning(String.format("Failed to delete branches %s:%n%s", failed, out.toString()));
+            }
+            return failed;
+        }
+    }
+
+    /**
+     * Deletes the branches on the remote in one push, returning the ones that
+     * could not be deleted. Branches already gone count as deleted.
+     */
+    static final class DeleteBranches implements RepositoryCallback<List<String>> {
+
+        private final String remote;
+        private final List<String> branches;
+
+        DeleteBranches(String remote, List<String> branches) {
+            this.remote = remote;
+            this.branches = branches;
+        }
+
+        public List<String> invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            List<RemoteRefUpdate> updates = new ArrayList<RemoteRefUpdate>();
+            for (String branch : branches) {
+                updates.add(new RemoteRefUpdate(repo, (String) null, Constants.R_HEADS + branch, false, null, null));
+            }
+
+            Transport transport;
+            try {
+                transport = Transport.open(repo, remote);
+            } catch (URISyntaxException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            List<String> failed = new ArrayList<String>();
+            try {
+                PushResult result = transport.push(NullProgressMonitor.INSTANCE, updates);
+                for (String branch : branches) {
+                    RemoteRefUpdate update = result.getRemoteUpdate(Constants.R_HEADS + branch);
+                    if (update == null) {
+                        failed.add(branch);
+                    } else if (update.getStatus() != RemoteRefUpdate.Status.OK && update.getStatus() != RemoteRefUpdate.Status.NON_EXISTING) {
+                        failed.add(branch);
+                    }
+                }
+            } finally {
+                transport.close();
+            }
+            return failed;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Flushes the queue every minute.
+     */
+    @Extension
+    public static final class Flusher extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            if (size() > 0) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Runs every operation by launching the git executable configured for the
+ * build.
+ */
+public class CliGitBackend extends GitBackend {
+
+    private final GitBridge bridge;
+
+    public CliGitBackend(GitBridge bridge, AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) {
+        super(build, launcher, listener);
+        this.bridge = bridge;
+    }
+
+    @Override
+    protected String clientExe() throws IOException, InterruptedException {
+        return bridge.getGitExe(build, listener);
+    }
+
+    @Override
+    public int checkout(String branch, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "checkout", branch);
+    }
+
+    @Override
+    public int pull(String remote, String branch, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "pull", remote, branch);
+    }
+
+    @Override
+    public int fetch(String remote, String branch, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "fetch", remote, String.format("+refs/heads/%s:refs/remotes/%s/%s", branch, remote, branch));
+    }
+
+    @Override
+    public int fastForward(String revision, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "merge", "--ff-only", revision);
+    }
+
+    @Override
+    public int mergeSquash(String revision, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "merge", "--squash", revision);
+    }
+
+    @Override
+    public int mergeNoFastForward(String revision, String message, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "merge", "-m", message, revision, "--no-ff");
+    }
+
+    @Override
+    public int commit(String message, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "commit", "-m", message);
+    }
+
+    @Override
+    public int push(String remote, String refspec, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "push", remote, refspec);
+    }
+
+    @Override
+    public int pushWithLease(String remote, String revision, String branch, String expected, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "push", String.format("--force-with-lease=refs/heads/%s:%s", branch, expected), remote, String.format("%s:refs/heads/%s", revision, branch));
+    }
+
+    @Override
+    public int resetHard(String revision, OutputStream out) throws IOException, InterruptedException {
+        return bridge.git(build, launcher, listener, out, "reset", "--hard", revision);
+    }
+
+    /**
+     * Uses merge-base --is-ancestor, which git answers from the commit-graph
+     * file when the repository has one.
+     */
+    @Override
+    public boolean isAncestor(String commit, String tip) throws IOException, InterruptedException {
+        GitOutput out = new GitOutput();
+        int exitCode = bridge.git(build, launcher, listener, out, "merge-base", "--is-ancestor", commit, tip);
+        if (exitCode > 1) {
+            throw new IOException(String.format("Failed to check if %s is an ancestor of %s:%n%s", commit, tip, out.toString()));
+        }
+        return exitCode == 0;
+    }
+}
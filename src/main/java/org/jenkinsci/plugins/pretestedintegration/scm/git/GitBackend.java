@@ -0,0 +1,140 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * The operations {@link GitBridge} and the strategies perform against the
+ * workspace repository. Every operation returns an exit code with the same
+ * meaning as the corresponding git command (0 on success) and writes its
+ * human readable output to the given stream, so callers do not need to care
+ * which implementation is in use.
+ *
+ * @see CliGitBackend
+ * @see JGitBackend
+ */
+public abstract class GitBackend {
+
+    public static final String CLI = "cli";
+    public static final String JGIT = "jgit";
+
+    protected final AbstractBuild<?, ?> build;
+    protected final Launcher launcher;
+    protected final TaskListener listener;
+
+    protected GitBackend(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) {
+        this.build = build;
+        this.launcher = launcher;
+        this.listener = listener;
+    }
+
+    /**
+     * Create the backend with the given name, falling back to the command line
+     * implementation for unknown or blank names.
+     */
+    public static GitBackend create(String name, GitBridge bridge, AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) {
+        if (JGIT.equals(name)) {
+            return new JGitBackend(build, launcher, listener);
+        }
+        return new CliGitBackend(bridge, build, launcher, listener);
+    }
+
+    /**
+     * @return A {@link GitClient} for the workspace, or the pooled worktree of
+     * the build, using the implementation
+     * matching this backend
+     */
+    public GitClient client() throws IOException, InterruptedException {
+        return IntegrationSession.of(build).client(WorktreePool.workspace(build), clientExe(), listener);
+    }
+
+    /**
+     * Merge the revision into base in memory.
+     *
+     * @return The conflicting paths, empty if the revisions merge cleanly
+     * @see MergeCheck
+     */
+    public List<String> conflicts(String base, String revision) throws IOException, InterruptedException {
+        return client().withRepository(new MergeCheck(base, revision));
+    }
+
+    /**
+     * @return true if the commit is reachable from the tip
+     * @see AncestryCheck
+     */
+    public boolean isAncestor(String commit, String tip) throws IOException, InterruptedException {
+        return client().withRepository(new AncestryCheck(commit, tip));
+    }
+
+    /**
+     * Run the callback on the node and write its output to the stream.
+     *
+     * @return The exit code of the callback
+     */
+    protected int run(RepositoryCallback<JGitBackend.Result> callback, OutputStream out) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        JGitBackend.Result result = client().withRepository(callback);
+        byte[] output = result.output.getBytes("UTF-8");
+        IntegrationTimings.recordGit(build, start, output.length);
+        if (out != null && output.length > 0) {
+            out.write(output);
+            out.flush();
+        }
+        return result.exitCode;
+    }
+
+    /**
+     * Move the checked out branch back to the revision, restoring only the
+     * paths the integration touched.
+     *
+     * @see PathRollback
+     */
+    public int rollbackPaths(String revision, OutputStream out) throws IOException, InterruptedException {
+        return run(new PathRollback(revision), out);
+    }
+
+    protected abstract String clientExe() throws IOException, InterruptedException;
+
+    public abstract int checkout(String branch, OutputStream out) throws IOException, InterruptedException;
+
+    public abstract int pull(String remote, String branch, OutputStream out) throws IOException, InterruptedException;
+
+    /**
+     * Fetch the branch into its remote tracking ref.
+     */
+    public abstract int fetch(String remote, String branch, OutputStream out) throws IOException, InterruptedException;
+
+    /**
+     * Fast-forward the checked out branch to the revision, failing if that is
+     * not possible.
+     */
+    public abstract int fastForward(String revision, OutputStream out) throws IOException, InterruptedException;
+
+    public abstract int mergeSquash(String revision, OutputStream out) throws IOException, InterruptedException;
+
+    public abstract int mergeNoFastForward(String revision, String message, OutputStream out) throws IOException, InterruptedException;
+
+    /**
+     * Commit the staged changes. Writes "nothing to commit" to the output and
+     * returns a non-zero exit code when nothing is staged, like git does.
+     */
+    public abstract int commit(String message, OutputStream out) throws IOException, InterruptedException;
+
+    public abstract int push(String remote, String refspec, OutputStream out) throws IOException, InterruptedException;
+
+    /**
+     * Push the revision to the branch, only if the remote branch still points
+     * at the expected commit.
+     */
+    public abstract int pushWithLease(String remote, String revision, String branch, String expected, OutputStream out) throws IOException, InterruptedException;
+
+    public abstract int resetHard(String revision, OutputStream out) throws IOException, InterruptedException;
+}
@@ -5,24 +5,42 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Launcher.ProcStarter;
 import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.Result;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.plugins.git.Branch;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.util.Build;
 import hudson.plugins.git.util.BuildData;
 import hudson.scm.SCM;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.ListBoxModel;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang.StringUtils;
-import org.jenkinsci.plugins.gitclient.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.jenkinsci.plugins.gitclient.GitClient;
 
 import org.jenkinsci.plugins.pretestedintegration.AbstractSCMBridge;
@@ -34,13 +52,27 @@ import org.jenkinsci.plugins.pretestedintegration.IntegrationStrategy;
 import org.jenkinsci.plugins.pretestedintegration.IntegrationStrategyDescriptor;
 import org.jenkinsci.plugins.pretestedintegration.exceptions.CommitChangesFailureException;
 import org.jenkinsci.plugins.pretestedintegration.exceptions.DeleteIntegratedBranchException;
+import org.jenkinsci.plugins.pretestedintegration.exceptions.IntegationFailedExeception;
 import org.jenkinsci.plugins.pretestedintegration.exceptions.NextCommitFailureException;
+import org.jenkinsci.plugins.pretestedintegration.exceptions.NothingToDoException;
 import org.jenkinsci.plugins.pretestedintegration.exceptions.RollbackFailureException;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class GitBridge extends AbstractSCMBridge {
 
     private String revId; 
+    private String backend;
+    private boolean precheck;
+    private int pushRetries;
+    private boolean incrementalUpdate;
+    private boolean asyncBranchDeletion;
+    private int worktreeBudget;
+    private boolean pathRollback;
+    private boolean prefetch;
+    private String sparsePaths;
+    private boolean maintenance;
+    private int speculationDepth;
 
     @DataBoundConstructor
     public GitBridge(IntegrationStrategy integrationStrategy, final String branch) {
@@ -53,6 +85,302 @@ public class GitBridge extends AbstractSCMBridge {
         return StringUtils.isBlank(this.branch) ? "master" : this.branch;
     }
 
+    public String getBackend() {
+        return StringUtils.isBlank(this.backend) ? GitBackend.CLI : this.backend;
+    }
+
+    @DataBoundSetter
+    public void setBackend(final String backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * @return The configured {@link GitBackend} bound to the given build
+     */
+    public GitBackend backend(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) {
+        return GitBackend.create(getBackend(), this, build, launcher, listener);
+    }
+
+    public boolean isPrecheck() {
+        return this.precheck;
+    }
+
+    @DataBoundSetter
+    public void setPrecheck(final boolean precheck) {
+        this.precheck = precheck;
+    }
+
+    /**
+     * @return The key of the integration lock for the repository and target
+     * branch of the build
+     */
+    String lockKey(AbstractBuild<?, ?> build) throws InterruptedException {
+        String repository = remoteUrl(build);
+        return IntegrationLocks.key(repository == null ? build.getProject().getFullName() : repository, getBranch());
+    }
+
+    /**
+     * @return The url of the first remote configured for the job, null if
+     * there is none
+     */
+    String remoteUrl(AbstractBuild<?, ?> build) throws InterruptedException {
+        GitSCM scm = findScm(build);
+        return scm.getUserRemoteConfigs().isEmpty() ? null : scm.getUserRemoteConfigs().get(0).getUrl();
+    }
+
+    /**
+     * @return true if the first remote configured for the job names
+     * credentials
+     */
+    private boolean hasCredentials(AbstractBuild<?, ?> build) throws InterruptedException {
+        GitSCM scm = findScm(build);
+        return !scm.getUserRemoteConfigs().isEmpty() && !StringUtils.isBlank(scm.getUserRemoteConfigs().get(0).getCredentialsId());
+    }
+
+    /**
+     * @return true if a build with the given result is good enough to be
+     * integrated
+     */
+    public boolean meetsRequiredResult(Result result) {
+        return result.isBetterOrEqualTo(getRequiredResult());
+    }
+
+    /**
+     * Merge the revision into the checked out integration branch in memory, if
+     * enabled, and fail before the workspace is touched when it conflicts.
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @param revision The revision to be integrated
+     * @throws IntegationFailedExeception
+     */
+    public void checkForConflicts(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String revision) throws IntegationFailedExeception {
+        if(!isPrecheck()) {
+            return;
+        }
+        List<String> conflicts;
+        try {
+            conflicts = backend(build, launcher, listener).conflicts("HEAD", revision);
+        } catch (IOException ex) {
+            throw new IntegationFailedExeception("Failed to check for merge conflicts", ex);
+        } catch (InterruptedException ex) {
+            throw new IntegationFailedExeception("Failed to check for merge conflicts", ex);
+        }
+
+        if(!conflicts.isEmpty()) {
+            listener.getLogger().println(String.format("%sMerging %s into %s would conflict in:", LOG_PREFIX, revision, getBranch()));
+            for(String path : conflicts) {
+                listener.getLogger().println(String.format("%s    %s", LOG_PREFIX, path));
+            }
+            try {
+                build.setDescription(String.format("Merge conflict"));
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Failed to update description", ex);
+            }
+            throw new IntegationFailedExeception(String.format("Merge conflict in %s file(s)", conflicts.size()));
+        }
+    }
+
+    /**
+     * Stop right away if the commit is already reachable from the integration
+     * tip, as for re-triggered and duplicate builds. Answers are cached, as
+     * ancestry between two commits never changes. The check is best effort,
+     * failing to tell leaves the decision to the merge.
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @param commit The SHA1 of the ready branch
+     * @throws NothingToDoException If the commit is already integrated
+     */
+    public void checkAlreadyIntegrated(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String commit) throws NothingToDoException {
+        PretestedIntegrationAction action = build.getAction(PretestedIntegrationAction.class);
+        Commit<?> tip = action == null ? null : action.getCurrentIntegrationTip();
+        if(tip == null || commit == null) {
+            return;
+        }
+        boolean integrated;
+        long start = System.currentTimeMillis();
+        try {
+            String key = integratedKey(build, commit);
+            integrated = INTEGRATED.contains(key);
+            if(!integrated) {
+                integrated = backend(build, launcher, listener).isAncestor(commit, (String)tip.getId());
+                if(integrated) {
+                    INTEGRATED.add(key);
+                }
+            }
+        } catch (Exception ex) {
+            logger.log(Level.FINE, "Failed to check if " + commit + " is already integrated", ex);
+            return;
+        } finally {
+            IntegrationTimings.record(build, "ancestryCheck", start);
+        }
+
+        if(integrated) {
+            listener.getLogger().println(String.format("%s%s is already in %s(%s), nothing to do", LOG_PREFIX, commit, getBranch(), tip.getId()));
+            try {
+                build.setDescription(String.format("Nothing to do"));
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Failed to update description", ex);
+            }
+            throw new NothingToDoException();
+        }
+    }
+
+    /**
+     * @return The number of times to replay the integrated change onto a
+     * moved integration branch and push again. With 0 a moved branch is
+     * replayed onto once and a rejected push fails right away.
+     */
+    public int getPushRetries() {
+        return this.pushRetries;
+    }
+
+    @DataBoundSetter
+    public void setPushRetries(final int pushRetries) {
+        this.pushRetries = pushRetries;
+    }
+
+    /**
+     * @return true to fetch only the integration branch, and only when it
+     * moved, instead of pulling it
+     */
+    public boolean isIncrementalUpdate() {
+        return this.incrementalUpdate;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalUpdate(final boolean incrementalUpdate) {
+        this.incrementalUpdate = incrementalUpdate;
+    }
+
+    /**
+     * @return true to queue the deletion of integrated branches and push them
+     * in batches after the build, instead of deleting them in the build
+     */
+    public boolean isAsyncBranchDeletion() {
+        return this.asyncBranchDeletion;
+    }
+
+    @DataBoundSetter
+    public void setAsyncBranchDeletion(final boolean asyncBranchDeletion) {
+        this.asyncBranchDeletion = asyncBranchDeletion;
+    }
+
+    /**
+     * @return The disk budget in megabytes of the pooled worktrees to
+     * integrate in, 0 to integrate in the workspace of the job
+     */
+    public int getWorktreeBudget() {
+        return this.worktreeBudget;
+    }
+
+    @DataBoundSetter
+    public void setWorktreeBudget(final int worktreeBudget) {
+        this.worktreeBudget = worktreeBudget;
+    }
+
+    /**
+     * @return true to roll back only the paths the integration touched,
+     * instead of resetting the whole working tree
+     */
+    public boolean isPathRollback() {
+        return this.pathRollback;
+    }
+
+    @DataBoundSetter
+    public void setPathRollback(final boolean pathRollback) {
+        this.pathRollback = pathRollback;
+    }
+
+    /**
+     * @return true to fetch the branches of the remote in the background
+     * while the build runs, for the next build to find them in place
+     */
+    public boolean isPrefetch() {
+        return this.prefetch;
+    }
+
+    @DataBoundSetter
+    public void setPrefetch(final boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @return The paths, one per line, to check out besides the ones the
+     * ready branch touches, blank for a full checkout
+     */
+    public String getSparsePaths() {
+        return this.sparsePaths;
+    }
+
+    @DataBoundSetter
+    public void setSparsePaths(final String sparsePaths) {
+        this.sparsePaths = sparsePaths;
+    }
+
+    /**
+     * @return The configured sparse paths, without blank lines and leading or
+     * trailing slashes
+     */
+    public List<String> getSparsePathList() {
+        List<String> paths = new ArrayList<String>();
+        if(this.sparsePaths != null) {
+            for(String line : this.sparsePaths.split("[\\r\\n]+")) {
+                String path = StringUtils.strip(line.trim(), "/");
+                if(!path.isEmpty()) {
+                    paths.add(path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return true to integrate in a sparse checkout of a blobless partial
+     * clone, which only the command line backend can do
+     */
+    public boolean isSparse() {
+        return !getSparsePathList().isEmpty() && !GitBackend.JGIT.equals(getBackend());
+    }
+
+    /**
+     * @return true to maintain the repository of the workspace in the
+     * background while the job is not building, which only the command line
+     * backend can do
+     */
+    public boolean isMaintenance() {
+        return this.maintenance;
+    }
+
+    @DataBoundSetter
+    public void setMaintenance(final boolean maintenance) {
+        this.maintenance = maintenance;
+    }
+
+    /**
+     * @return The number of speculative candidates integrating into the
+     * target at once, 0 to integrate every build on the tip of the remote
+     */
+    public int getSpeculationDepth() {
+        return this.speculationDepth;
+    }
+
+    @DataBoundSetter
+    public void setSpeculationDepth(final int speculationDepth) {
+        this.speculationDepth = speculationDepth;
+    }
+
+    /**
+     * @return true if builds integrate on the candidates of the builds ahead
+     * of them, see {@link SpeculationQueue}, which needs pooled worktrees
+     */
+    public boolean isSpeculative() {
+        return getSpeculationDepth() > 0 && getWorktreeBudget() > 0;
+    }
+
     public String getRevId() {
         return this.revId;
     }
@@ -65,7 +393,7 @@ public class GitBridge extends AbstractSCMBridge {
         return this.workingDirectory;
     }
 
-    private GitSCM findScm(AbstractBuild<?, ?> build) throws InterruptedException {
+    GitSCM findScm(AbstractBuild<?, ?> build) throws InterruptedException {
         try {
             SCM scm = build.getProject().getScm();
             GitSCM git = (GitSCM) scm;
@@ -75,13 +403,21 @@ public class GitBridge extends AbstractSCMBridge {
         }
     }
 
+    String getGitExe(AbstractBuild<?, ?> build, TaskListener listener) throws InterruptedException {
+        IntegrationSession session = IntegrationSession.of(build);
+        if(session.getGitExe() == null) {
+            GitSCM scm = findScm(build);
+            session.setGitExe(scm.getGitExe(build.getBuiltOn(), listener));
+        }
+        return session.getGitExe();
+    }
+
     private ProcStarter buildCommand(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String... cmds) throws IOException, InterruptedException {
-        GitSCM scm = findScm(build);        
-        String gitExe = scm.getGitExe(build.getBuiltOn(), listener);
+        String gitExe = getGitExe(build, listener);
         ArgumentListBuilder b = new ArgumentListBuilder();
         b.add(gitExe);
         b.add(cmds);
-        return launcher.launch().cmds(b).pwd(build.getWorkspace());
+        return launcher.launch().cmds(b).pwd(WorktreePool.workspace(build));
     }
 
     /**
@@ -97,7 +433,9 @@ public class GitBridge extends AbstractSCMBridge {
      */
     public int git(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String... cmds) throws IOException, InterruptedException {
         ProcStarter git = buildCommand(build, launcher, listener, cmds);                
+        long start = System.currentTimeMillis();
         int exitCode = git.join();
+        IntegrationTimings.recordGit(build, start, 0);
         return exitCode;
     }
 
@@ -114,28 +452,392 @@ public class GitBridge extends AbstractSCMBridge {
      */
     public int git(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, OutputStream out, String... cmds) throws IOException, InterruptedException {
         ProcStarter git = buildCommand(build, launcher, listener, cmds);
-        int exitCode = git.stdout(out).join();
+        CountingOutputStream counted = new CountingOutputStream(out);
+        long start = System.currentTimeMillis();
+        int exitCode = git.stdout(counted).join();
+        IntegrationTimings.recordGit(build, start, counted.getByteCount());
         return exitCode;
     }
 
     
     @Override
     public void ensureBranch(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, String branch) throws EstablishWorkspaceException {
-        listener.getLogger().println(String.format("Checking out integration target branch %s and pulling latest changes", getBranch()));
+        long start = System.currentTimeMillis();
         try {
-            git(build, launcher, listener, "checkout", getBranch());
-            update(build, launcher, listener);
+            listener.getLogger().println(String.format("Checking out integration target branch %s and pulling latest changes", getBranch()));
+            try {
+                ReadyBranchPrefetcher.cancel(build.getWorkspace());
+                if(GitBackend.JGIT.equals(getBackend()) && hasCredentials(build)) {
+                    listener.getLogger().println(String.format("%sThe in-process JGit implementation does not use the credentials of the remote, use command line git if fetching or pushing fails", LOG_PREFIX));
+                }
+                boolean sparse = isSparse() && supportsSparse(build, launcher, listener);
+                if(getWorktreeBudget() > 0) {
+                    leaseWorktree(build, launcher, listener, sparse);
+                } else if(getSpeculationDepth() > 0) {
+                    listener.getLogger().println(String.format("%sSpeculative integration needs pooled worktrees, integrating on the tip of %s", LOG_PREFIX, getBranch()));
+                }
+                String base = isSpeculative() && WorktreePool.store(build) != null ? SpeculationQueue.join(build, lockKey(build), getSpeculationDepth(), listener) : null;
+                if(sparse) {
+                    configureSparse(build, launcher, listener);
+                } else {
+                    if(!getSparsePathList().isEmpty() && !isSparse()) {
+                        listener.getLogger().println(String.format("%sSparse checkout needs the command line git implementation, checking out everything", LOG_PREFIX));
+                    }
+                    if(!GitBackend.JGIT.equals(getBackend())) {
+                        revertSparse(build, launcher, listener);
+                    }
+                }
+                if(isAgentSide()) {
+                    integrateOnAgent(build, launcher, listener);
+                } else if(base != null) {
+                    GitBackend backend = backend(build, launcher, listener);
+                    backend.checkout(getBranch(), listener.getLogger());
+                    if(backend.resetHard(base, listener.getLogger()) != 0) {
+                        throw new IOException(String.format("Failed to move %s to the candidate %s", getBranch(), base));
+                    }
+                    RefIndex.invalidate(build);
+                    listener.getLogger().println(String.format("%sIntegrating speculatively on %s, the candidate of the build(s) ahead", LOG_PREFIX, base));
+                } else {
+                    backend(build, launcher, listener).checkout(getBranch(), listener.getLogger());
+                    update(build, launcher, listener);
+                }
+            } catch (IOException ex) {
+                throw new EstablishWorkspaceException(ex);
+            } catch (InterruptedException ex) {
+                throw new EstablishWorkspaceException(ex);
+            }
+
+            if(isMaintenance()) {
+                try {
+                    String gitExe = GitBackend.JGIT.equals(getBackend()) ? null : getGitExe(build, listener);
+                    if(gitExe == null) {
+                        listener.getLogger().println(String.format("%sRepository maintenance needs the command line git implementation, skipping it", LOG_PREFIX));
+                    }
+                    RepositoryMaintenance.register(build, gitExe);
+                } catch (InterruptedException ex) {
+                    logger.log(Level.FINE, "Failed to register for maintenance", ex);
+                }
+            }
+
+            if(isPrefetch()) {
+                try {
+                    String gitExe = GitBackend.JGIT.equals(getBackend()) ? null : getGitExe(build, listener);
+                    ReadyBranchPrefetcher.schedule(build.getParent().getFullName(), build.getWorkspace(), gitExe, "origin");
+                } catch (InterruptedException ex) {
+                    logger.log(Level.FINE, "Failed to schedule prefetch", ex);
+                }
+            }
+        } finally {
+            IntegrationTimings.record(build, "ensureBranch", start);
+        }
+    }
+
+    /**
+     * Integrate in a worktree from the pool of the node instead of the
+     * workspace of the job. Every following git operation of the build runs
+     * in the leased worktree, until commit or rollback gives it back. Only the
+     * integration branch and the ready branches are fetched, all branches for
+     * the merge train.
+     */
+    private void leaseWorktree(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, boolean sparse) throws IOException, InterruptedException {
+        String url = remoteUrl(build);
+        if(url == null) {
+            listener.getLogger().println(String.format("%sNo remote configured, integrating in the workspace", LOG_PREFIX));
+            return;
+        }
+        List<String> ready = null;
+        if(!(getIntegrationStrategy() instanceof MergeTrainStrategy)) {
+            ready = Collections.singletonList(removeOrigin(IntegrationSession.of(build).getReadyBranch().getName()));
+        }
+        long start = System.currentTimeMillis();
+        FilePath worktree = WorktreePool.lease(build, launcher, listener, getGitExe(build, listener), url, getBranch(), ready, getWorktreeBudget(), sparse);
+        IntegrationTimings.record(build, "leaseWorktree", start);
+        listener.getLogger().println(String.format("%sIntegrating in pooled worktree %s", LOG_PREFIX, worktree.getRemote()));
+    }
+
+    /**
+     * Check out the integration made in a pooled worktree in the workspace of
+     * the job, where the build steps test it. The strategies call this once
+     * they integrated. Does nothing when integrating in the workspace.
+     *
+     * @throws IntegationFailedExeception If the integration could not be
+     * checked out, and would go untested
+     */
+    public void checkoutIntegration(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) throws IntegationFailedExeception {
+        if(WorktreePool.store(build) == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            WorktreePool.checkoutInWorkspace(build, launcher, listener, getGitExe(build, listener));
+            listener.getLogger().println(String.format("%sChecked out the integration in the workspace %s", LOG_PREFIX, build.getWorkspace().getRemote()));
+            if(SpeculationQueue.isQueued(build)) {
+                SpeculationQueue.integrated(build, WorktreePool.publish(build, launcher, listener, getGitExe(build, listener)));
+            }
         } catch (IOException ex) {
-            throw new EstablishWorkspaceException(ex);
+            throw new IntegationFailedExeception("Failed to check out the integration in the workspace", ex);
         } catch (InterruptedException ex) {
-            throw new EstablishWorkspaceException(ex);
+            throw new IntegationFailedExeception("Failed to check out the integration in the workspace", ex);
+        } finally {
+            IntegrationTimings.record(build, "checkoutIntegration", start);
+        }
+    }
+
+    /**
+     * Narrow the workspace to a sparse checkout cone of the directories the
+     * ready branch touches and the configured paths, and make the clone a
+     * blobless partial clone, so later fetches skip file contents and git
+     * fetches the blobs it needs on demand. Files outside the cone are neither
+     * written nor read by the merge. Requires git 2.25 or later, and a remote
+     * allowing filters. The repository is marked, so {@link #revertSparse}
+     * knows to undo this once the option is turned off.
+     */
+    private void configureSparse(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            GitBackend backend = backend(build, launcher, listener);
+            Set<String> cone = new TreeSet<String>(getSparsePathList());
+            String tip = RefIndex.of(build, backend).getRemoteBranch("origin/" + getBranch());
+            Branch ready = IntegrationSession.of(build).getReadyBranch();
+            if(tip != null) {
+                for(String path : TouchedPathsIndex.touched(build, backend, tip, ready.getName(), ready.getSHA1String())) {
+                    int slash = path.lastIndexOf('/');
+                    if(slash > 0) {
+                        cone.add(path.substring(0, slash));
+                    }
+                }
+            }
+
+            GitOutput out = new GitOutput();
+            if(git(build, launcher, listener, out, "config", "remote.origin.promisor", "true") != 0
+                    || git(build, launcher, listener, out, "config", "remote.origin.partialclonefilter", "blob:none") != 0
+                    || git(build, launcher, listener, out, "sparse-checkout", "init", "--cone") != 0
+                    || git(build, launcher, listener, out, "config", SPARSE_MARKER, "true") != 0) {
+                throw new IOException(String.format("Failed to set up sparse checkout:%n%s", out.toString()));
+            }
+            StringBuilder stdin = new StringBuilder();
+            for(String dir : cone) {
+                stdin.append(dir).append('\n');
+            }
+            ProcStarter set = buildCommand(build, launcher, listener, "sparse-checkout", "set", "--stdin");
+            if(set.stdin(new ByteArrayInputStream(stdin.toString().getBytes("UTF-8"))).stdout(out).join() != 0) {
+                throw new IOException(String.format("Failed to set sparse checkout cone:%n%s", out.toString()));
+            }
+            listener.getLogger().println(String.format("%sSparse checkout of %d director(ies)", LOG_PREFIX, cone.size()));
+        } finally {
+            IntegrationTimings.record(build, "sparseCheckout", start);
+        }
+    }
+
+    /**
+     * Check out everything again and stop fetching without blobs, if an
+     * earlier build set up a sparse checkout in the repository integrated in.
+     * The origin stays a promisor remote, as the clone still lacks the blobs
+     * it skipped and fetches them from there when needed.
+     */
+    private void revertSparse(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        GitOutput out = new GitOutput();
+        if(git(build, launcher, listener, out, "config", "--get", SPARSE_MARKER) != 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            if(git(build, launcher, listener, out, "sparse-checkout", "disable") != 0) {
+                throw new IOException(String.format("Failed to disable sparse checkout:%n%s", out.toString()));
+            }
+            git(build, launcher, listener, out, "config", "--unset", "remote.origin.partialclonefilter");
+            git(build, launcher, listener, out, "config", "--unset", SPARSE_MARKER);
+            listener.getLogger().println(String.format("%sSparse checkout turned off, checked out everything", LOG_PREFIX));
+        } finally {
+            IntegrationTimings.record(build, "sparseCheckout", start);
+        }
+    }
+
+    /**
+     * @return true if the git executable of the node is recent enough for
+     * sparse checkout cones, see {@link #SPARSE_MIN_VERSION}. Logs a warning
+     * otherwise. The answer is cached per node and executable.
+     */
+    private boolean supportsSparse(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        String gitExe = getGitExe(build, listener);
+        String key = String.format("%s:%s", build.getBuiltOnStr(), gitExe);
+        Boolean supported = SPARSE_SUPPORT.get(key);
+        if(supported == null) {
+            GitOutput out = new GitOutput();
+            int exitCode = git(build, launcher, listener, out, "--version");
+            Matcher m = GIT_VERSION.matcher(out.toString());
+            supported = exitCode == 0 && m.find()
+                    && (Integer.parseInt(m.group(1)) > SPARSE_MIN_VERSION[0]
+                        || (Integer.parseInt(m.group(1)) == SPARSE_MIN_VERSION[0] && Integer.parseInt(m.group(2)) >= SPARSE_MIN_VERSION[1]));
+            SPARSE_SUPPORT.put(key, supported);
+        }
+        if(!supported) {
+            listener.getLogger().println(String.format("%sWARNING: Sparse checkout needs git %d.%d or later on the node, checking out everything", LOG_PREFIX, SPARSE_MIN_VERSION[0], SPARSE_MIN_VERSION[1]));
+        }
+        return supported;
+    }
+
+    /**
+     * @return The key of the commit in the cache of integrated commits. A
+     * commit reachable from the integration branch stays reachable as the
+     * branch moves on, so the key does not name the tip.
+     */
+    private String integratedKey(AbstractBuild<?, ?> build, String commit) throws InterruptedException {
+        return String.format("%s@%s", lockKey(build), commit);
+    }
+
+    /**
+     * @return true if establishing the branch and integrating are done in one
+     * call on the node, which the in-process backend can do for the squash
+     * and accumulated strategies. The ready branch is then merged in memory
+     * before anything is written, which makes the precheck redundant, so it
+     * is not run. The ancestry check runs on the node, unless the cache
+     * already knows the ready commit is integrated. Speculative builds
+     * integrate on a candidate rather than the updated branch, so they are
+     * never integrated this way.
+     */
+    public boolean isAgentSide() {
+        return GitBackend.JGIT.equals(getBackend()) && !isSpeculative()
+                && (getIntegrationStrategy() instanceof SquashCommitStrategy || getIntegrationStrategy() instanceof AccumulatedCommitStrategy);
+    }
+
+    /**
+     * Check out and update the integration branch and integrate the ready
+     * branch in one {@link IntegrationSequence} call. The ready branch is
+     * picked the way the strategies pick it, and the answer of the ancestry
+     * check is shared with {@link #checkAlreadyIntegrated}. The outcome is
+     * kept on the build for the strategy to report through
+     * {@link #applyAgentOutcome(AbstractBuild, TaskListener)}.
+     */
+    private void integrateOnAgent(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        IntegrationSession session = IntegrationSession.of(build);
+        boolean squash = getIntegrationStrategy() instanceof SquashCommitStrategy;
+        IntegrationSequence sequence = new IntegrationSequence("origin", getBranch(), isIncrementalUpdate(), session.getReadyBranch().getName(), session.getReadySha(), squash);
+
+        String key = integratedKey(build, session.getReadySha());
+        if(INTEGRATED.contains(key)) {
+            sequence.knownIntegrated();
+        }
+        if(isPrecheck()) {
+            listener.getLogger().println(String.format("%sThe merge is made in memory before the workspace is touched, skipping the separate conflict check", LOG_PREFIX));
+        }
+
+        IntegrationSequence.Outcome outcome = backend(build, launcher, listener).client().withRepository(sequence);
+        RefIndex.invalidate(build);
+        if(Boolean.TRUE.equals(outcome.ancestor)) {
+            INTEGRATED.add(key);
         }
+
+        for(String line : outcome.log) {
+            listener.getLogger().println(line);
+        }
+        if(outcome.status == IntegrationSequence.Status.FAILED) {
+            throw new IOException(String.format("Failed to establish integration branch %s", getBranch()));
+        }
+        build.addAction(new IntegrationOutcomeAction(outcome));
+    }
+
+    /**
+     * Report the integration done by {@link #integrateOnAgent}, if any.
+     *
+     * @return false if the build has no such integration, and the strategy
+     * has to integrate itself
+     * @throws IntegationFailedExeception If the ready branch conflicts
+     * @throws NothingToDoException If there was nothing to integrate
+     */
+    public boolean applyAgentOutcome(AbstractBuild<?, ?> build, TaskListener listener) throws IntegationFailedExeception, NothingToDoException {
+        IntegrationOutcomeAction action = build.getAction(IntegrationOutcomeAction.class);
+        if(action == null) {
+            return false;
+        }
+        IntegrationSequence.Outcome outcome = action.getOutcome();
+        if(outcome.status == IntegrationSequence.Status.CONFLICT) {
+            listener.getLogger().println("Failed to merge changes. Conflicting files below");
+            for(String path : outcome.conflicts) {
+                listener.getLogger().println(path);
+            }
+            try {
+                build.setDescription(String.format("Merge conflict"));
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Failed to update description", ex);
+            }
+            throw new IntegationFailedExeception();
+        }
+        if(outcome.status == IntegrationSequence.Status.NOTHING_TO_DO) {
+            try {
+                build.setDescription(String.format("Nothing to do"));
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Failed to update description", ex);
+            }
+            throw new NothingToDoException();
+        }
+        return true;
     }
 
     protected void update(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {		     
-        git(build, launcher, listener, "pull", "origin", branch);
+        if(!isIncrementalUpdate()) {
+            backend(build, launcher, listener).pull("origin", branch, listener.getLogger());
+            return;
+        }
+
+        GitBackend git = backend(build, launcher, listener);
+        String tracking = String.format("refs/remotes/origin/%s", getBranch());
+        if(isUpToDate(git.client(), remoteUrl(build), tracking)) {
+            listener.getLogger().println(String.format("%s%s is up to date with the remote, skipping fetch", LOG_PREFIX, tracking));
+        } else if(git.fetch("origin", getBranch(), listener.getLogger()) != 0) {
+            throw new IOException(String.format("Failed to fetch %s", getBranch()));
+        }
+
+        if(git.fastForward(tracking, listener.getLogger()) != 0) {
+            listener.getLogger().println(String.format("%sCould not fast-forward %s, pulling instead", LOG_PREFIX, getBranch()));
+            git.pull("origin", getBranch(), listener.getLogger());
+        }
     }
-    
+
+    /**
+     * @return true if the remote tracking ref matches the branch head on the
+     * remote, asking the remote for that single ref only
+     */
+    private boolean isUpToDate(GitClient client, String url, String tracking) throws InterruptedException {
+        if(url == null) {
+            return false;
+        }
+        try {
+            ObjectId remote = client.getHeadRev(url, getBranch());
+            return remote != null && remote.equals(client.revParse(tracking));
+        } catch (GitException ex) {
+            logger.log(Level.FINE, "Failed to compare " + tracking + " with the remote", ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return Name to SHA1 of the remote branches matched by the branch
+     * specifications of the job, starting with the given branch
+     */
+    Map<String, String> pendingBranches(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String first) throws IOException, InterruptedException {
+        GitSCM scm = findScm(build);
+        RefIndex refs = RefIndex.of(build, backend(build, launcher, listener));
+        Map<String, String> remote = refs.getRemoteBranches();
+
+        Map<String, String> pending = new LinkedHashMap<String, String>();
+        if(remote.containsKey(first)) {
+            pending.put(first, remote.get(first));
+        }
+        for(Map.Entry<String, String> b : remote.entrySet()) {
+            if(b.getKey().endsWith("/" + getBranch()) || pending.containsKey(b.getKey())) {
+                continue;
+            }
+            for(BranchSpec spec : scm.getBranches()) {
+                if(spec.matches(b.getKey())) {
+                    pending.put(b.getKey(), b.getValue());
+                    break;
+                }
+            }
+        }
+        return pending;
+    }
+
     /**
      * 1. Convert the stuff in the commit to Map<String,String>
      * 2. Check the current working branch if there are any more commits in that
@@ -149,9 +851,7 @@ public class GitBridge extends AbstractSCMBridge {
         logger.finest("Git plugin, nextCommit invoked");
         Commit<String> next = null;
         try {            
-            BuildData gitBuildData = build.getAction(BuildData.class);
-            Branch gitDataBranch = gitBuildData.lastBuild.revision.getBranches().iterator().next();
-            next = new Commit<String>(gitDataBranch.getSHA1String());
+            next = new Commit<String>(IntegrationSession.of(build).getReadySha());
         } catch (Exception e) {            
             logger.finest("Failed to find next commit");
             throw new NextCommitFailureException(e);
@@ -160,58 +860,290 @@ public class GitBridge extends AbstractSCMBridge {
         return next;
     }
 
+    /**
+     * Take the integration lock for the target of the build, so pushes into
+     * the same target happen one at a time. Builds integrate and test without
+     * it, the lock only covers checking the target and pushing.
+     */
+    private void acquireLock(AbstractBuild<?, ?> build, TaskListener listener) throws InterruptedException {
+        String key = lockKey(build);
+        int queued = IntegrationLocks.getQueueDepth(key);
+        if(queued > 0) {
+            listener.getLogger().println(String.format("%sWaiting for %s build(s) ahead in the queue for %s", LOG_PREFIX, queued, getBranch()));
+        }
+        long waited = IntegrationLocks.acquire(build, key);
+        IntegrationTimings.record(build, "lockWait", System.currentTimeMillis() - waited);
+        listener.getLogger().println(String.format("%sAcquired integration lock for %s after %d ms", LOG_PREFIX, getBranch(), waited));
+    }
+
+    /**
+     * @return false if the integration branch on the remote is known to have
+     * moved away from the tip the integration was made on. Only that single
+     * ref is asked for. If the remote cannot tell, the push decides.
+     */
+    private boolean isTipUnchanged(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String base) throws InterruptedException {
+        String url = remoteUrl(build);
+        if(url == null || base == null) {
+            return true;
+        }
+        try {
+            ObjectId remote = backend(build, launcher, listener).client().getHeadRev(url, getBranch());
+            return remote == null || remote.name().equals(base);
+        } catch (GitException ex) {
+            logger.log(Level.FINE, "Failed to ask the remote for " + getBranch(), ex);
+            return true;
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Failed to ask the remote for " + getBranch(), ex);
+            return true;
+        }
+    }
+
+    /**
+     * @return The SHA1 of the integration tip the build integrated on, null
+     * if it is not known
+     */
+    private String integrationBase(AbstractBuild<?, ?> build) {
+        IntegrationOutcomeAction integrated = build.getAction(IntegrationOutcomeAction.class);
+        if(integrated != null) {
+            return integrated.getOutcome().tip;
+        }
+        PretestedIntegrationAction action = build.getAction(PretestedIntegrationAction.class);
+        Commit<?> tip = action == null ? null : action.getCurrentIntegrationTip();
+        return tip == null ? null : (String)tip.getId();
+    }
+
+    /**
+     * Push the tested integration under the integration lock. The target is
+     * checked first: if it moved since the build integrated, the tested
+     * change is replayed onto it, once when retries are disabled. A rejected
+     * push is only retried when retries are enabled.
+     *
+     * @return The exit code of the push
+     */
+    private int pushUnderLock(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, GitOutput bos) throws IOException, InterruptedException {
+        acquireLock(build, listener);
+        if(!isTipUnchanged(build, launcher, listener, integrationBase(build))) {
+            String moved = String.format("%s moved on the remote since the integration was tested", getBranch());
+            listener.getLogger().println(LOG_PREFIX + moved);
+            bos.write(String.format("%s%n", moved).getBytes("UTF-8"));
+            return retryPush(build, launcher, listener, bos, Math.max(getPushRetries(), 1));
+        }
+        int returncode = backend(build, launcher, listener).push("origin", getBranch(), bos);
+        if(returncode != 0 && getPushRetries() > 0) {
+            returncode = retryPush(build, launcher, listener, bos, getPushRetries());
+        }
+        return returncode;
+    }
+
+    /**
+     * Push the integration, if the build tested it: when integrating in a
+     * pooled worktree, the workspace of the job must still have it checked
+     * out. A speculative candidate waits for the candidates ahead of it to
+     * be pushed first, and is dropped and built again if one of the
+     * candidates it holds failed.
+     */
     @Override
     public void commit(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws CommitChangesFailureException {
-        int returncode = -99999;
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
         try {
-            returncode = git(build, launcher, listener, bos, "push", "origin", getBranch());
-        } catch (Exception ex) {
-            logger.log(Level.WARNING, "Failed to commit changes to integration branch", ex);
-        }
+            int returncode = -99999;
+            GitOutput bos = new GitOutput();
+            try {
+                if(!SpeculationQueue.awaitTurn(build, listener)) {
+                    String dropped = "A speculative candidate this integration was made on failed, dropping it";
+                    listener.getLogger().println(LOG_PREFIX + dropped);
+                    bos.write(String.format("%s%n", dropped).getBytes("UTF-8"));
+                    returncode = 1;
+                    rebuild(build, listener);
+                } else if(!WorktreePool.isCheckedOutInWorkspace(build, launcher, listener, getGitExe(build, listener))) {
+                    String untested = String.format("The workspace %s no longer has the integration checked out, refusing to push untested changes", build.getWorkspace().getRemote());
+                    listener.getLogger().println(LOG_PREFIX + untested);
+                    bos.write(String.format("%s%n", untested).getBytes("UTF-8"));
+                    returncode = 1;
+                } else {
+                    returncode = pushUnderLock(build, launcher, listener, bos);
+                }
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Failed to commit changes to integration branch", ex);
+            }
+            if(returncode == 0) {
+                SpeculationQueue.pushed(build);
+            } else {
+                SpeculationQueue.dropped(build);
+            }
+            RefIndex.invalidate(build);
+            WorktreePool.release(build);
+            IntegrationLocks.release(build);
         
-        if(returncode != 0) {
-            throw new CommitChangesFailureException( String.format( "Failed to commit integrated changes, message was:%n%s", bos.toString()) );
+            if(returncode != 0) {
+                throw new CommitChangesFailureException( String.format( "Failed to commit integrated changes, message was:%n%s", bos.toString()) );
+            }
+        } finally {
+            IntegrationTimings.record(build, "commit", start);
+        }
+    }
+
+    /**
+     * Fetch the moved integration branch, replay the tested change onto it if
+     * the two do not touch the same paths and push with a lease on the fetched
+     * tip. Backs off exponentially between attempts.
+     *
+     * @param attempts The number of times to replay and push
+     * @return The exit code of the last push, or 1 if the change could not be
+     * replayed
+     */
+    private int retryPush(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, OutputStream out, int attempts) throws IOException, InterruptedException {
+        String base = integrationBase(build);
+        if(base == null) {
+            return 1;
+        }
+        GitBackend git = backend(build, launcher, listener);
+        int returncode = 1;
+        for(int attempt = 1; attempt <= attempts; attempt++) {
+            if(attempt > 1) {
+                Thread.sleep(PUSH_BACKOFF_MILLIS << (attempt - 2));
+            }
+            listener.getLogger().println(String.format("%sReplaying onto the moved %s and pushing (attempt %d of %d)", LOG_PREFIX, getBranch(), attempt, attempts));
+            if(git.fetch("origin", getBranch(), out) != 0) {
+                continue;
+            }
+
+            Replay.Result replay = git.client().withRepository(new Replay(base, String.format("refs/remotes/origin/%s", getBranch())));
+            if(replay.status == Replay.Status.OVERLAP) {
+                listener.getLogger().println(String.format("%sChanges on %s overlap with the integrated change in:", LOG_PREFIX, getBranch()));
+                for(String path : replay.paths) {
+                    listener.getLogger().println(String.format("%s    %s", LOG_PREFIX, path));
+                }
+                return 1;
+            }
+            if(replay.status == Replay.Status.NOT_MOVED) {
+                returncode = git.push("origin", getBranch(), out);
+            } else {
+                listener.getLogger().println(String.format("%sReplayed integrated change onto %s as %s", LOG_PREFIX, replay.expected, replay.sha1));
+                returncode = git.pushWithLease("origin", replay.sha1, getBranch(), replay.expected, out);
+                base = replay.expected;
+            }
+            if(returncode == 0) {
+                break;
+            }
+        }
+        return returncode;
+    }
+
+    /**
+     * Schedule the ready branch of the build to be built again, after its
+     * speculative candidate was dropped. The Git plugin skips revisions it
+     * already built, so the revision is first forgotten by the build data of
+     * this build and of the builds started since.
+     */
+    private void rebuild(AbstractBuild<?, ?> build, TaskListener listener) {
+        String sha = IntegrationSession.of(build).getReadySha();
+        for(AbstractBuild<?, ?> b = build.getProject().getLastBuild(); b != null && b.getNumber() >= build.getNumber(); b = b.getPreviousBuild()) {
+            BuildData data = b.getAction(BuildData.class);
+            if(data == null) {
+                continue;
+            }
+            Iterator<Build> it = data.buildsByBranchName.values().iterator();
+            while(it.hasNext()) {
+                Build built = it.next();
+                if(sha.equals(built.revision.getSha1String()) || (built.marked != null && sha.equals(built.marked.getSha1String()))) {
+                    it.remove();
+                }
+            }
+            if(!b.isBuilding()) {
+                try {
+                    b.save();
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Failed to save " + b, ex);
+                }
+            }
         }
+        build.getProject().scheduleBuild2(0, new Cause.UpstreamCause((Run<?, ?>) build));
+        listener.getLogger().println(String.format("%sScheduled %s to be built again", LOG_PREFIX, IntegrationSession.of(build).getReadyBranch().getName()));
     }
 
     @Override
     public void rollback(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws RollbackFailureException {        
-        int returncode = -9999;
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();        
-        Commit<?> lastIntegraion = build.getAction(PretestedIntegrationAction.class).getCurrentIntegrationTip();
+        long start = System.currentTimeMillis();
         try {
-            if(lastIntegraion != null) {
-                returncode = git(build, launcher, listener, bos, "reset", "--hard", (String)lastIntegraion.getId());
-            } 
+            int returncode = -9999;
+            GitOutput bos = new GitOutput();
+            Commit<?> lastIntegraion = build.getAction(PretestedIntegrationAction.class).getCurrentIntegrationTip();
+            try {
+                if(lastIntegraion != null && isPathRollback()) {
+                    try {
+                        returncode = backend(build, launcher, listener).rollbackPaths((String)lastIntegraion.getId(), bos);
+                    } catch (IOException ex) {
+                        logger.log(Level.FINE, "Failed to roll back the touched paths", ex);
+                        returncode = 1;
+                    }
+                    if(returncode != 0) {
+                        listener.getLogger().println(String.format("%sCould not roll back the touched paths only, resetting the working tree", LOG_PREFIX));
+                    }
+                }
+                if(lastIntegraion != null && returncode != 0) {
+                    returncode = backend(build, launcher, listener).resetHard((String)lastIntegraion.getId(), bos);
+                }
         
-        } catch (Exception ex) {
-            logger.log(Level.WARNING, "Failed to roll back", ex);
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Failed to roll back", ex);
+            }
+
+            SpeculationQueue.dropped(build);
+            WorktreePool.release(build);
+
+            //If the return code is -9999 that means no previous pre-test action
+            if(returncode != 0 && returncode != -9999) {
+                throw new RollbackFailureException( String.format( "Failed to rollback changes, message was:%n%s", bos.toString()) );
+            }
+        } finally {
+            IntegrationTimings.record(build, "rollback", start);
         }
-        
-        //If the return code is -9999 that means no previous pre-test action
-        if(returncode != 0 && returncode != -9999) {
-            throw new RollbackFailureException( String.format( "Failed to rollback changes, message was:%n%s", bos.toString()) );
-        }        
     }
 
     @Override
     public void deleteIntegratedBranch(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws DeleteIntegratedBranchException {
-        BuildData gitBuildData = build.getAction(BuildData.class);
-        Branch gitDataBranch = gitBuildData.lastBuild.revision.getBranches().iterator().next();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int delRemote = -99999;
+        long start = System.currentTimeMillis();
+        try {
+            IntegrationSession session = IntegrationSession.of(build);
         
-        if(build.getResult().isBetterOrEqualTo(getRequiredResult())) {
-            try {
-                delRemote = git(build, launcher, listener, out, "push", "origin",":"+removeOrigin(gitDataBranch.getName()));
-            } catch (Exception ex) {
-                logger.log(Level.WARNING, "Failure to delete branch", ex);
+            List<String> integrated = new ArrayList<String>();
+            MergeTrainAction train = build.getAction(MergeTrainAction.class);
+            if(train != null) {
+                integrated.addAll(train.getBranches());
+            } else {
+                integrated.add(session.getReadyBranch().getName());
             }
-            
-            if(delRemote != 0) {
-                throw new DeleteIntegratedBranchException(String.format( "Failed to delete the remote branch %s with the following error:%n%s", gitDataBranch.getName(), out.toString()) );
-            } 
+
+            if(meetsRequiredResult(build.getResult()) && isAsyncBranchDeletion()) {
+                String gitExe = null;
+                try {
+                    gitExe = GitBackend.JGIT.equals(getBackend()) ? null : getGitExe(build, listener);
+                } catch (InterruptedException ex) {
+                    throw new DeleteIntegratedBranchException(String.format("Interrupted while queueing deletion of %s", integrated));
+                }
+                for(String name : integrated) {
+                    BranchDeletionQueue.enqueue(build.getWorkspace(), gitExe, "origin", removeOrigin(name));
+                }
+                listener.getLogger().println(String.format("%sQueued deletion of %s", LOG_PREFIX, integrated));
+            } else if(meetsRequiredResult(build.getResult())) {
+                for(String name : integrated) {
+                    GitOutput out = new GitOutput();
+                    int delRemote = -99999;
+                    try {
+                        delRemote = backend(build, launcher, listener).push("origin", deleteRefspec(name), out);
+                        RefIndex.invalidate(build);
+                    } catch (Exception ex) {
+                        logger.log(Level.WARNING, "Failure to delete branch", ex);
+                    }
+
+                    if(delRemote != 0) {
+                        throw new DeleteIntegratedBranchException(String.format( "Failed to delete the remote branch %s with the following error:%n%s", name, out.toString()) );
+                    }
+                }
+            }
+        } finally {
+            IntegrationTimings.record(build, "deleteIntegratedBranch", start);
         }
     }
 
@@ -220,7 +1152,7 @@ public class GitBridge extends AbstractSCMBridge {
         
         BuildData gitBuildData = build.getAction(BuildData.class);
         if(gitBuildData != null) {
-            Branch gitDataBranch = gitBuildData.lastBuild.revision.getBranches().iterator().next();         
+            Branch gitDataBranch = IntegrationSession.of(build).getReadyBranch();
             String text = "";
             if(!StringUtils.isBlank(build.getDescription())) {
                 text = String.format( "%s<br/>Branch: %s", build.getDescription(), gitDataBranch.getName());
@@ -234,29 +1166,49 @@ public class GitBridge extends AbstractSCMBridge {
         
     }
     
-    private String removeOrigin(String branchName) {
+    private static String removeOrigin(String branchName) {
         String s = branchName.substring(branchName.indexOf("/")+1, branchName.length());
         return s;
     }
+
+    /**
+     * @return The refspec deleting the remote branch of the given remote
+     * tracking branch name. The destination is a full ref name, as JGit
+     * does not expand short names for deletions.
+     */
+    static String deleteRefspec(String branchName) {
+        return ":" + Constants.R_HEADS + removeOrigin(branchName);
+    }
     
     
 
     @Override
     protected Commit<?> determineIntegrationHead(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) {
-        Commit<?> commit = null;
+        long start = System.currentTimeMillis();
         try {
-            GitClient client = Git.with(listener, build.getEnvironment(listener)).in(build.getWorkspace()).getClient();
-            for(Branch b : client.getBranches()) {
-                if(b.getName().contains(getBranch())) {
-                    commit = new Commit(b.getSHA1String());
+            Commit<?> commit = null;
+            IntegrationOutcomeAction integrated = build.getAction(IntegrationOutcomeAction.class);
+            if(integrated != null) {
+                return new Commit(integrated.getOutcome().tip);
+            }
+            try {
+                RefIndex refs = RefIndex.of(build, backend(build, launcher, listener));
+                String sha = refs.getLocalBranch(getBranch());
+                if(sha == null) {
+                    sha = refs.getRemoteBranch("origin/" + getBranch());
                 }
-            }            
-        } catch (IOException ex) {
-            Logger.getLogger(GitBridge.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(GitBridge.class.getName()).log(Level.SEVERE, null, ex);
+                if(sha != null) {
+                    commit = new Commit(sha);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(GitBridge.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(GitBridge.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return commit;
+        } finally {
+            IntegrationTimings.record(build, "determineIntegrationHead", start);
         }
-        return commit;
     }
     
     @Extension
@@ -285,9 +1237,35 @@ public class GitBridge extends AbstractSCMBridge {
             return new SquashCommitStrategy();
         }
 
+        public ListBoxModel doFillBackendItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Command line git", GitBackend.CLI);
+            items.add("In-process JGit", GitBackend.JGIT);
+            return items;
+        }
+
     }
 
     private FilePath workingDirectory = null;
     final static String LOG_PREFIX = "[PREINT-GIT] ";
+    private static final long PUSH_BACKOFF_MILLIS = 1000;
     private static final Logger logger = Logger.getLogger(GitBridge.class.getName());
+
+    private static final int INTEGRATED_CACHE_SIZE = 10000;
+
+    /** The git config key marking a repository set up for sparse checkout */
+    static final String SPARSE_MARKER = "pretested.sparse";
+    private static final int[] SPARSE_MIN_VERSION = { 2, 25 };
+    private static final Pattern GIT_VERSION = Pattern.compile("git version (\\d+)\\.(\\d+)");
+
+    /** node:git executable to whether it supports sparse checkout cones */
+    private static final Map<String, Boolean> SPARSE_SUPPORT = Collections.synchronizedMap(new HashMap<String, Boolean>());
+
+    /** lock key@commit of the commits known to be reachable from the integration branch */
+    private static final Set<String> INTEGRATED = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > INTEGRATED_CACHE_SIZE;
+        }
+    }));
 }
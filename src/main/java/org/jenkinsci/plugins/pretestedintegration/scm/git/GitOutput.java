@@ -0,0 +1,149 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Captures the output of a git command with bounded memory. Output is
+ * optionally streamed to a log as it arrives, only the last
+ * {@link #TAIL_SIZE} bytes are kept for error messages, and the facts the
+ * bridge and strategies act on are picked up line by line while writing.
+ */
+public class GitOutput extends OutputStream {
+
+    static final int TAIL_SIZE = 16 * 1024;
+    static final int MAX_LINE = 4 * 1024;
+    static final int MAX_CONFLICTS = 1000;
+
+    private static final Pattern CONFLICT = Pattern.compile("^CONFLICT \\([^)]*\\): .*?(?:Merge conflict in |deleted in \\S+ and modified in \\S+\\. Version \\S+ of )(.+?)(?: left in tree\\.)?$");
+
+    private final PrintStream log;
+    private final byte[] tail = new byte[TAIL_SIZE];
+    private long written;
+    private final byte[] line = new byte[MAX_LINE];
+    private int lineLength;
+    private boolean nothingToCommit;
+    private final List<String> conflicts = new ArrayList<String>();
+
+    public GitOutput() {
+        this(null);
+    }
+
+    /**
+     * @param log Where to stream the output to as it arrives, null to only
+     * capture it
+     */
+    public GitOutput(PrintStream log) {
+        this.log = log;
+    }
+
+    @Override
+    public void write(int b) {
+        if (log != null) {
+            log.write(b);
+        }
+        capture((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (log != null) {
+            log.write(b, off, len);
+        }
+        for (int i = off; i < off + len; i++) {
+            capture(b[i]);
+        }
+    }
+
+    private void capture(byte b) {
+        tail[(int) (written % TAIL_SIZE)] = b;
+        written++;
+
+        if (b == '\n') {
+            endLine();
+        } else if (lineLength < MAX_LINE) {
+            line[lineLength++] = b;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (log != null) {
+            log.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        endLine();
+        flush();
+    }
+
+    private void endLine() {
+        if (lineLength == 0) {
+            return;
+        }
+        String text = decode(line, 0, lineLength).trim();
+        if (text.contains("nothing to commit")) {
+            nothingToCommit = true;
+        }
+        Matcher m = CONFLICT.matcher(text);
+        if (m.matches() && conflicts.size() < MAX_CONFLICTS) {
+            conflicts.add(m.group(1));
+        }
+        lineLength = 0;
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return new String(bytes, offset, length);
+        }
+    }
+
+    /**
+     * @return true if git reported that there was nothing to commit
+     */
+    public boolean isNothingToCommit() {
+        endLine();
+        return nothingToCommit;
+    }
+
+    /**
+     * @return The paths git reported as conflicting, at most
+     * {@link #MAX_CONFLICTS} of them
+     */
+    public List<String> getConflicts() {
+        endLine();
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    /**
+     * @return The total number of bytes written
+     */
+    public long size() {
+        return written;
+    }
+
+    /**
+     * @return The last {@link #TAIL_SIZE} bytes of the output
+     */
+    @Override
+    public String toString() {
+        if (written <= TAIL_SIZE) {
+            return decode(tail, 0, (int) written);
+        }
+        int start = (int) (written % TAIL_SIZE);
+        byte[] ordered = new byte[TAIL_SIZE];
+        System.arraycopy(tail, start, ordered, 0, TAIL_SIZE - start);
+        System.arraycopy(tail, 0, ordered, TAIL_SIZE - start, start);
+        return String.format("[... %d bytes omitted ...]%n%s", written - TAIL_SIZE, decode(ordered, 0, TAIL_SIZE));
+    }
+}
@@ -0,0 +1,32 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Releases the integration lock and the pooled worktree of a build when it
+ * completes, in case commit or rollback did not, for instance when the push
+ * failed or there was nothing to integrate. Takes the build out of the
+ * speculation queue and ends the integration session of the build.
+ */
+@Extension
+public class IntegrationLockReleaser extends RunListener<Run<?, ?>> {
+
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+        SpeculationQueue.leave(run);
+        WorktreePool.release(run);
+        IntegrationLocks.release(run);
+        IntegrationSession.end(run);
+    }
+
+    @Override
+    public void onDeleted(Run<?, ?> run) {
+        SpeculationQueue.leave(run);
+        WorktreePool.release(run);
+        IntegrationLocks.release(run);
+        IntegrationSession.end(run);
+    }
+}
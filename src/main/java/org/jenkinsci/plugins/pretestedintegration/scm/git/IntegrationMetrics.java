@@ -0,0 +1,188 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Controller wide histograms of the time spent in each integration phase,
+ * served at /pretested-integration-metrics as JSON, or as Prometheus text
+ * with ?format=prometheus. The integration lock statistics are included, and
+ * in JSON the latest repository maintenance report of each workspace. As
+ * these name repositories and workspaces, reading them takes the Administer
+ * permission.
+ */
+@Extension
+public class IntegrationMetrics implements RootAction {
+
+    /** Upper bounds of the histogram buckets, in milliseconds */
+    static final long[] BUCKETS = { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000 };
+
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private static final AtomicLong gitOutputBytes = new AtomicLong();
+
+    public static void record(String phase, long millis) {
+        Histogram histogram = histograms.get(phase);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(phase, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(millis);
+    }
+
+    public static void recordGitOutput(long bytes) {
+        gitOutputBytes.addAndGet(bytes);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Pretested integration metrics";
+    }
+
+    public String getUrlName() {
+        return "pretested-integration-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        Map<String, Histogram> phases = new TreeMap<String, Histogram>(histograms);
+        Map<String, IntegrationLocks.Statistics> locks = new TreeMap<String, IntegrationLocks.Statistics>(IntegrationLocks.getStatistics());
+
+        if ("prometheus".equals(req.getParameter("format"))) {
+            rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            w.println("# TYPE pretested_integration_phase_seconds histogram");
+            for (Map.Entry<String, Histogram> e : phases.entrySet()) {
+                Histogram h = e.getValue();
+                long cumulative = 0;
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    cumulative += h.buckets.get(i);
+                    w.println(String.format("pretested_integration_phase_seconds_bucket{phase=\"%s\",le=\"%s\"} %d", e.getKey(), seconds(BUCKETS[i]), cumulative));
+                }
+                w.println(String.format("pretested_integration_phase_seconds_bucket{phase=\"%s\",le=\"+Inf\"} %d", e.getKey(), h.count.get()));
+                w.println(String.format("pretested_integration_phase_seconds_sum{phase=\"%s\"} %s", e.getKey(), seconds(h.sum.get())));
+                w.println(String.format("pretested_integration_phase_seconds_count{phase=\"%s\"} %d", e.getKey(), h.count.get()));
+            }
+            w.println("# TYPE pretested_integration_git_output_bytes_total counter");
+            w.println(String.format("pretested_integration_git_output_bytes_total %d", gitOutputBytes.get()));
+            w.println("# TYPE pretested_integration_lock_queue_depth gauge");
+            for (String lock : locks.keySet()) {
+                w.println(String.format("pretested_integration_lock_queue_depth{lock=\"%s\"} %d", escape(lock), IntegrationLocks.getQueueDepth(lock)));
+            }
+            w.println("# TYPE pretested_integration_lock_wait_seconds summary");
+            for (Map.Entry<String, IntegrationLocks.Statistics> e : locks.entrySet()) {
+                w.println(String.format("pretested_integration_lock_wait_seconds_sum{lock=\"%s\"} %s", escape(e.getKey()), seconds(e.getValue().getTotalWaitMillis())));
+                w.println(String.format("pretested_integration_lock_wait_seconds_count{lock=\"%s\"} %d", escape(e.getKey()), e.getValue().getAcquisitions()));
+            }
+            w.flush();
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        JSONObject phaseJson = new JSONObject();
+        for (Map.Entry<String, Histogram> e : phases.entrySet()) {
+            Histogram h = e.getValue();
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < BUCKETS.length; i++) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("leMillis", BUCKETS[i]);
+                bucket.put("count", h.buckets.get(i));
+                buckets.add(bucket);
+            }
+            JSONObject histogram = new JSONObject();
+            histogram.put("count", h.count.get());
+            histogram.put("sumMillis", h.sum.get());
+            histogram.put("maxMillis", h.max.get());
+            histogram.put("buckets", buckets);
+            phaseJson.put(e.getKey(), histogram);
+        }
+        json.put("phases", phaseJson);
+        json.put("gitOutputBytes", gitOutputBytes.get());
+
+        JSONObject lockJson = new JSONObject();
+        for (Map.Entry<String, IntegrationLocks.Statistics> e : locks.entrySet()) {
+            JSONObject lock = new JSONObject();
+            lock.put("queueDepth", IntegrationLocks.getQueueDepth(e.getKey()));
+            lock.put("acquisitions", e.getValue().getAcquisitions());
+            lock.put("totalWaitMillis", e.getValue().getTotalWaitMillis());
+            lock.put("maxWaitMillis", e.getValue().getMaxWaitMillis());
+            lockJson.put(e.getKey(), lock);
+        }
+        json.put("locks", lockJson);
+
+        JSONObject maintenanceJson = new JSONObject();
+        for (Map.Entry<String, RepositoryMaintenance.Report> e : new TreeMap<String, RepositoryMaintenance.Report>(RepositoryMaintenance.getReports()).entrySet()) {
+            RepositoryMaintenance.Report r = e.getValue();
+            JSONObject report = new JSONObject();
+            report.put("time", r.getTime());
+            report.put("durationMillis", r.getDurationMillis());
+            report.put("probeBeforeMillis", r.getProbeBeforeMillis());
+            report.put("probeAfterMillis", r.getProbeAfterMillis());
+            report.put("looseObjectsBefore", r.getLooseBefore());
+            report.put("looseObjectsAfter", r.getLooseAfter());
+            report.put("packsBefore", r.getPacksBefore());
+            report.put("packsAfter", r.getPacksAfter());
+            report.put("stepMillis", r.getSteps());
+            maintenanceJson.put(e.getKey(), report);
+        }
+        json.put("maintenance", maintenanceJson);
+
+        rsp.setContentType("application/json; charset=UTF-8");
+        rsp.getWriter().print(json.toString());
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%d.%03d", millis / 1000, millis % 1000);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Counts of recorded times per bucket, with the sum and the maximum.
+     */
+    static final class Histogram {
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long millis) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (millis <= BUCKETS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            count.incrementAndGet();
+            sum.addAndGet(millis);
+            long current = max.get();
+            while (millis > current && !max.compareAndSet(current, millis)) {
+                current = max.get();
+            }
+        }
+    }
+}
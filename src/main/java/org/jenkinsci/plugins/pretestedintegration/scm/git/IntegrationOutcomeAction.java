@@ -0,0 +1,20 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.model.InvisibleAction;
+
+/**
+ * Holds the outcome of an {@link IntegrationSequence} run while establishing
+ * the integration branch, for the strategy to report on.
+ */
+public class IntegrationOutcomeAction extends InvisibleAction {
+
+    private final IntegrationSequence.Outcome outcome;
+
+    public IntegrationOutcomeAction(IntegrationSequence.Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    public IntegrationSequence.Outcome getOutcome() {
+        return outcome;
+    }
+}
@@ -0,0 +1,168 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Establishes the integration branch and integrates the ready branch into it
+ * in a single call on the node holding the workspace: check out and update
+ * the integration branch, check that the ready branch still exists and is
+ * not integrated already, merge it in memory and write the result. Only the compact {@link Outcome} travels back to the controller.
+ */
+public class IntegrationSequence implements RepositoryCallback<IntegrationSequence.Outcome> {
+
+    public enum Status { INTEGRATED, NOTHING_TO_DO, CONFLICT, FAILED }
+
+    private final String remote;
+    private final String branch;
+    private final boolean incremental;
+    private final String readyBranch;
+    private final String readySha;
+    private final boolean squash;
+    private boolean knownIntegrated;
+
+    /**
+     * @param remote The remote to update from
+     * @param branch The integration branch
+     * @param incremental Fetch the integration branch only when it moved and
+     * fast-forward, instead of pulling
+     * @param readyBranch The remote tracking name of the ready branch
+     * @param readySha The commit of the ready branch to integrate
+     * @param squash Squash the ready branch, otherwise make a --no-ff merge
+     */
+    public IntegrationSequence(String remote, String branch, boolean incremental, String readyBranch, String readySha, boolean squash) {
+        this.remote = remote;
+        this.branch = branch;
+        this.incremental = incremental;
+        this.readyBranch = readyBranch;
+        this.readySha = readySha;
+        this.squash = squash;
+    }
+
+    /**
+     * Skip walking the history, the controller already knows the ready
+     * commit is reachable from the integration branch.
+     *
+     * @return This sequence
+     */
+    public IntegrationSequence knownIntegrated() {
+        this.knownIntegrated = true;
+        return this;
+    }
+
+    public Outcome invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+        Outcome outcome = new Outcome();
+
+        if (!step(outcome, new JGitBackend.Checkout(branch).invoke(repo, channel))) {
+            return outcome;
+        }
+
+        String tracking = Constants.R_REMOTES + remote + "/" + branch;
+        if (!incremental) {
+            if (!step(outcome, new JGitBackend.Pull(remote, branch).invoke(repo, channel))) {
+                return outcome;
+            }
+        } else {
+            if (isUpToDate(repo, tracking)) {
+                outcome.log.add(String.format("%s is up to date with the remote, skipping fetch", tracking));
+            } else if (!step(outcome, new JGitBackend.Fetch(remote, branch).invoke(repo, channel))) {
+                return outcome;
+            }
+            if (new JGitBackend.FastForward(tracking).invoke(repo, channel).exitCode != 0) {
+                outcome.log.add(String.format("Could not fast-forward %s, pulling instead", branch));
+                if (!step(outcome, new JGitBackend.Pull(remote, branch).invoke(repo, channel))) {
+                    return outcome;
+                }
+            }
+        }
+        outcome.tip = JGitBackend.resolve(repo, Constants.HEAD).name();
+
+        if (repo.getRef(Constants.R_REMOTES + readyBranch) == null) {
+            outcome.status = Status.NOTHING_TO_DO;
+            outcome.log.add(String.format("%s no longer exists", readyBranch));
+            return outcome;
+        }
+
+        outcome.ancestor = knownIntegrated || AncestryCheck.isAncestor(repo, readySha, outcome.tip);
+        if (outcome.ancestor) {
+            outcome.status = Status.NOTHING_TO_DO;
+            outcome.log.add(String.format("%s(%s) is already in %s", readyBranch, readySha, branch));
+            return outcome;
+        }
+
+        SquashMerge.Result merged = new SquashMerge(readySha, String.format("Integrated %s", readyBranch), !squash).invoke(repo, channel);
+        outcome.conflicts.addAll(merged.conflicts);
+        if (merged.status == SquashMerge.Status.CONFLICT) {
+            outcome.status = Status.CONFLICT;
+        } else if (merged.status == SquashMerge.Status.NOTHING_TO_DO) {
+            outcome.status = Status.NOTHING_TO_DO;
+        } else {
+            outcome.status = Status.INTEGRATED;
+            outcome.sha1 = merged.sha1;
+            outcome.log.add(String.format("Integrated %s(%s) into %s as %s", readyBranch, readySha, branch, merged.sha1));
+        }
+        return outcome;
+    }
+
+    private boolean step(Outcome outcome, JGitBackend.Result result) {
+        if (result.output.length() > 0) {
+            outcome.log.add(result.output.trim());
+        }
+        if (result.exitCode != 0) {
+            outcome.status = Status.FAILED;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isUpToDate(Repository repo, String tracking) throws IOException {
+        Ref local = repo.getRef(tracking);
+        if (local == null) {
+            return false;
+        }
+        try {
+            for (Ref ref : Git.wrap(repo).lsRemote().setRemote(remote).setHeads(true).call()) {
+                if (ref.getName().equals(Constants.R_HEADS + branch)) {
+                    ObjectId id = ref.getObjectId();
+                    return id != null && id.equals(local.getObjectId());
+                }
+            }
+        } catch (GitAPIException ex) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * The result of the sequence, carried back from the node.
+     */
+    public static final class Outcome implements Serializable {
+
+        /** How the sequence ended */
+        public Status status;
+        /** The integration tip before integration */
+        public String tip;
+        /** Whether the ready commit is reachable from the tip, null if not checked */
+        public Boolean ancestor;
+        /** The integrated commit */
+        public String sha1;
+        public final List<String> conflicts = new ArrayList<String>();
+        public final List<String> log = new ArrayList<String>();
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.util.BuildData;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+/**
+ * What the bridge and the strategies need over and over during one build,
+ * computed once and kept from ensureBranch to deleteIntegratedBranch: the
+ * build environment, the git executable, a git client per workspace and
+ * implementation, and the ready branch of the built revision.
+ * <p>
+ * Repository handles live on the node holding the workspace, so it is the
+ * git client, a proxy to the node for remote workspaces, that is reused.
+ * <p>
+ * Sessions are keyed by the externalizable id of the build, as a session
+ * holds its build, and are dropped when the build completes or is deleted,
+ * see {@link IntegrationLockReleaser}.
+ */
+public final class IntegrationSession {
+
+    private static final ConcurrentMap<String, IntegrationSession> sessions = new ConcurrentHashMap<String, IntegrationSession>();
+
+    private final AbstractBuild<?, ?> build;
+    private EnvVars environment;
+    private String gitExe;
+    private final Map<String, GitClient> clients = new HashMap<String, GitClient>();
+    private Branch readyBranch;
+
+    private IntegrationSession(AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+
+    /**
+     * @return The session of the build, started if missing
+     */
+    public static IntegrationSession of(AbstractBuild<?, ?> build) {
+        String id = build.getExternalizableId();
+        IntegrationSession session = sessions.get(id);
+        if (session == null) {
+            IntegrationSession started = new IntegrationSession(build);
+            session = sessions.putIfAbsent(id, started);
+            if (session == null) {
+                session = started;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Drop the session of the build, if any.
+     */
+    public static void end(Run<?, ?> build) {
+        sessions.remove(build.getExternalizableId());
+    }
+
+    public synchronized EnvVars getEnvironment(TaskListener listener) throws IOException, InterruptedException {
+        if (environment == null) {
+            environment = build.getEnvironment(listener);
+        }
+        return environment;
+    }
+
+    /**
+     * @return The git executable resolved for the build, null if not resolved
+     * yet
+     */
+    public synchronized String getGitExe() {
+        return gitExe;
+    }
+
+    public synchronized void setGitExe(String gitExe) {
+        this.gitExe = gitExe;
+    }
+
+    /**
+     * @param exe The git executable, or {@link GitBackend#JGIT}
+     * @return A client for the workspace, created on first use
+     */
+    public synchronized GitClient client(FilePath workspace, String exe, TaskListener listener) throws IOException, InterruptedException {
+        String key = String.format("%s:%s:%s", workspace.getChannel(), workspace.getRemote(), exe);
+        GitClient client = clients.get(key);
+        if (client == null) {
+            client = Git.with(listener, getEnvironment(listener)).in(workspace).using(exe).getClient();
+            clients.put(key, client);
+        }
+        return client;
+    }
+
+    /**
+     * @return The first branch of the built revision
+     */
+    public synchronized Branch getReadyBranch() {
+        if (readyBranch == null) {
+            BuildData gitBuildData = build.getAction(BuildData.class);
+            readyBranch = gitBuildData.lastBuild.revision.getBranches().iterator().next();
+        }
+        return readyBranch;
+    }
+
+    /**
+     * @return The commit of the built revision
+     */
+    public String getReadySha() {
+        return getReadyBranch().getSHA1String();
+    }
+}
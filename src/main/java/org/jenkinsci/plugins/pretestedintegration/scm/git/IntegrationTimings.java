@@ -0,0 +1,99 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The time a build spent in each phase of the integration, and in git
+ * commands. Every recorded time is also fed to {@link IntegrationMetrics}.
+ */
+public class IntegrationTimings implements Action {
+
+    public static final String GIT = "git";
+
+    /** Guards adding the timings to a build, without locking the build itself */
+    private static final Object ATTACH = new Object();
+
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private long gitCommands;
+    private long gitOutputBytes;
+
+    /**
+     * @return The timings of the build, added to it if missing
+     */
+    public static IntegrationTimings of(AbstractBuild<?, ?> build) {
+        synchronized (ATTACH) {
+            IntegrationTimings timings = build.getAction(IntegrationTimings.class);
+            if (timings == null) {
+                timings = new IntegrationTimings();
+                build.addAction(timings);
+            }
+            return timings;
+        }
+    }
+
+    /**
+     * Record the time since start for the phase of the build.
+     *
+     * @param start When the phase started, from {@link System#currentTimeMillis()}
+     */
+    public static void record(AbstractBuild<?, ?> build, String phase, long start) {
+        long millis = System.currentTimeMillis() - start;
+        of(build).add(phase, millis);
+        IntegrationMetrics.record(phase, millis);
+    }
+
+    /**
+     * Record a git command of the build.
+     *
+     * @param start When the command started, from {@link System#currentTimeMillis()}
+     * @param bytes The number of bytes the command wrote to its output
+     */
+    public static void recordGit(AbstractBuild<?, ?> build, long start, long bytes) {
+        long millis = System.currentTimeMillis() - start;
+        IntegrationTimings timings = of(build);
+        synchronized (timings) {
+            timings.add(GIT, millis);
+            timings.gitCommands++;
+            timings.gitOutputBytes += bytes;
+        }
+        IntegrationMetrics.record(GIT, millis);
+        IntegrationMetrics.recordGitOutput(bytes);
+    }
+
+    private synchronized void add(String phase, long millis) {
+        Long total = phases.get(phase);
+        phases.put(phase, total == null ? millis : total + millis);
+    }
+
+    /**
+     * @return Phase to milliseconds spent in it, in the order the phases were
+     * first recorded
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<String, Long>(phases);
+    }
+
+    public synchronized long getGitCommands() {
+        return gitCommands;
+    }
+
+    public synchronized long getGitOutputBytes() {
+        return gitOutputBytes;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Integration timings";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,404 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.util.Collections;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeCommand;
+import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.CreateBranchCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Runs every operation in-process with JGit. The work is shipped to the node
+ * holding the workspace through {@link GitClient#withRepository}, so no git
+ * process is forked for any of the operations. Fetches and pushes set no
+ * credentials provider, so only remotes that need no credentials, such as
+ * file remotes, are supported.
+ */
+public class JGitBackend extends GitBackend {
+
+    public JGitBackend(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) {
+        super(build, launcher, listener);
+    }
+
+    @Override
+    protected String clientExe() {
+        return GitBackend.JGIT;
+    }
+
+    @Override
+    public int checkout(String branch, OutputStream out) throws IOException, InterruptedException {
+        return run(new Checkout(branch), out);
+    }
+
+    @Override
+    public int pull(String remote, String branch, OutputStream out) throws IOException, InterruptedException {
+        return run(new Pull(remote, branch), out);
+    }
+
+    @Override
+    public int fetch(String remote, String branch, OutputStream out) throws IOException, InterruptedException {
+        return run(new Fetch(remote, branch), out);
+    }
+
+    @Override
+    public int fastForward(String revision, OutputStream out) throws IOException, InterruptedException {
+        return run(new FastForward(revision), out);
+    }
+
+    @Override
+    public int mergeSquash(String revision, OutputStream out) throws IOException, InterruptedException {
+        return run(new Merge(revision, null), out);
+    }
+
+    @Override
+    public int mergeNoFastForward(String revision, String message, OutputStream out) throws IOException, InterruptedException {
+        return run(new Merge(revision, message), out);
+    }
+
+    @Override
+    public int commit(String message, OutputStream out) throws IOException, InterruptedException {
+        return run(new Commit(message), out);
+    }
+
+    @Override
+    public int push(String remote, String refspec, OutputStream out) throws IOException, InterruptedException {
+        return run(new Push(remote, refspec), out);
+    }
+
+    @Override
+    public int pushWithLease(String remote, String revision, String branch, String expected, OutputStream out) throws IOException, InterruptedException {
+        return run(new LeasePush(remote, revision, branch, expected), out);
+    }
+
+    @Override
+    public int resetHard(String revision, OutputStream out) throws IOException, InterruptedException {
+        return run(new Reset(revision), out);
+    }
+
+    /**
+     * Exit code and output of an operation, carried back from the node.
+     */
+    static final class Result implements Serializable {
+
+        final int exitCode;
+        final String output;
+
+        Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        static Result ok(String output) {
+            return new Result(0, output);
+        }
+
+        static Result failed(String output) {
+            return new Result(1, output);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static ObjectId resolve(Repository repo, String revision) throws IOException {
+        ObjectId id = repo.resolve(revision);
+        if (id == null) {
+            throw new IOException(String.format("Could not resolve revision %s", revision));
+        }
+        return id;
+    }
+
+    static final class Checkout implements RepositoryCallback<Result> {
+
+        private final String branch;
+
+        Checkout(String branch) {
+            this.branch = branch;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Git git = Git.wrap(repo);
+            try {
+                if (repo.getRef(Constants.R_HEADS + branch) == null) {
+                    git.checkout().setName(branch).setCreateBranch(true)
+                            .setStartPoint(Constants.DEFAULT_REMOTE_NAME + "/" + branch)
+                            .setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK).call();
+                } else {
+                    git.checkout().setName(branch).call();
+                }
+                return Result.ok(String.format("Switched to branch '%s'%n", branch));
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class Pull implements RepositoryCallback<Result> {
+
+        private final String remote;
+        private final String branch;
+
+        Pull(String remote, String branch) {
+            this.remote = remote;
+            this.branch = branch;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Git git = Git.wrap(repo);
+            String tracking = Constants.R_REMOTES + remote + "/" + branch;
+            try {
+                git.fetch().setRemote(remote).setRefSpecs(new RefSpec("+" + Constants.R_HEADS + branch + ":" + tracking)).call();
+                MergeResult result = git.merge().include(resolve(repo, tracking)).call();
+                if (!result.getMergeStatus().isSuccessful()) {
+                    return Result.failed(describe(result));
+                }
+                return Result.ok(String.format("Updated %s from %s%n", branch, tracking));
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class Fetch implements RepositoryCallback<Result> {
+
+        private final String remote;
+        private final String branch;
+
+        Fetch(String remote, String branch) {
+            this.remote = remote;
+            this.branch = branch;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            String tracking = Constants.R_REMOTES + remote + "/" + branch;
+            try {
+                Git.wrap(repo).fetch().setRemote(remote).setRefSpecs(new RefSpec("+" + Constants.R_HEADS + branch + ":" + tracking)).call();
+                return Result.ok(String.format("Fetched %s into %s%n", branch, tracking));
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class FastForward implements RepositoryCallback<Result> {
+
+        private final String revision;
+
+        FastForward(String revision) {
+            this.revision = revision;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            try {
+                MergeResult result = Git.wrap(repo).merge().include(resolve(repo, revision))
+                        .setFastForward(MergeCommand.FastForwardMode.FF_ONLY).call();
+                if (!result.getMergeStatus().isSuccessful()) {
+                    return Result.failed(describe(result));
+                }
+                return Result.ok(String.format("Fast-forward to %s: %s%n", revision, result.getMergeStatus()));
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Squash merge when no message is given, otherwise a --no-ff merge
+     * committed with the message.
+     */
+    private static final class Merge implements RepositoryCallback<Result> {
+
+        private final String revision;
+        private final String message;
+
+        Merge(String revision, String message) {
+            this.revision = revision;
+            this.message = message;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Git git = Git.wrap(repo);
+            try {
+                MergeCommand merge = git.merge().include(resolve(repo, revision));
+                if (message == null) {
+                    merge.setSquash(true);
+                } else {
+                    merge.setFastForward(MergeCommand.FastForwardMode.NO_FF).setCommit(false);
+                }
+                MergeResult result = merge.call();
+                if (!result.getMergeStatus().isSuccessful()) {
+                    return Result.failed(describe(result));
+                }
+                if (message != null && repo.readMergeHeads() != null) {
+                    git.commit().setMessage(message).call();
+                }
+                return Result.ok(String.format("Merged %s: %s%n", revision, result.getMergeStatus()));
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Commit implements RepositoryCallback<Result> {
+
+        private final String message;
+
+        Commit(String message) {
+            this.message = message;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Git git = Git.wrap(repo);
+            try {
+                Status status = git.status().call();
+                boolean merging = repo.readMergeHeads() != null;
+                if (!merging && status.getAdded().isEmpty() && status.getChanged().isEmpty() && status.getRemoved().isEmpty()) {
+                    return Result.failed(String.format("nothing to commit, working directory clean%n"));
+                }
+                ObjectId id = git.commit().setMessage(message).call();
+                return Result.ok(String.format("[%s] %s%n", id.abbreviate(7).name(), message));
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class Push implements RepositoryCallback<Result> {
+
+        private final String remote;
+        private final String refspec;
+
+        Push(String remote, String refspec) {
+            this.remote = remote;
+            this.refspec = refspec;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Git git = Git.wrap(repo);
+            try {
+                StringBuilder output = new StringBuilder();
+                boolean rejected = false;
+                for (PushResult result : git.push().setRemote(remote).setRefSpecs(new RefSpec(refspec)).call()) {
+                    for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+                        output.append(String.format("%s %s%n", update.getRemoteName(), update.getStatus()));
+                        if (update.getMessage() != null) {
+                            output.append(String.format("%s%n", update.getMessage()));
+                        }
+                        if (update.getStatus() != RemoteRefUpdate.Status.OK && update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+                            rejected = true;
+                        }
+                    }
+                }
+                return rejected ? Result.failed(output.toString()) : Result.ok(output.toString());
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class LeasePush implements RepositoryCallback<Result> {
+
+        private final String remote;
+        private final String revision;
+        private final String branch;
+        private final String expected;
+
+        LeasePush(String remote, String revision, String branch, String expected) {
+            this.remote = remote;
+            this.revision = revision;
+            this.branch = branch;
+            this.expected = expected;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Transport transport;
+            try {
+                transport = Transport.open(repo, remote);
+            } catch (URISyntaxException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+            try {
+                RemoteRefUpdate update = new RemoteRefUpdate(repo, revision, Constants.R_HEADS + branch, false, null, ObjectId.fromString(expected));
+                PushResult result = transport.push(NullProgressMonitor.INSTANCE, Collections.singleton(update));
+                RemoteRefUpdate.Status status = result.getRemoteUpdate(Constants.R_HEADS + branch).getStatus();
+                String output = String.format("%s %s%n", Constants.R_HEADS + branch, status);
+                return status == RemoteRefUpdate.Status.OK ? Result.ok(output) : Result.failed(output);
+            } finally {
+                transport.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Reset implements RepositoryCallback<Result> {
+
+        private final String revision;
+
+        Reset(String revision) {
+            this.revision = revision;
+        }
+
+        public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Git git = Git.wrap(repo);
+            try {
+                git.reset().setMode(ResetCommand.ResetType.HARD).setRef(revision).call();
+                return Result.ok(String.format("HEAD is now at %s%n", revision));
+            } catch (GitAPIException ex) {
+                return Result.failed(String.format("error: %s%n", ex.getMessage()));
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static String describe(MergeResult result) {
+        StringBuilder output = new StringBuilder(String.format("Merge %s%n", result.getMergeStatus()));
+        if (result.getConflicts() != null) {
+            for (String path : result.getConflicts().keySet()) {
+                output.append(String.format("CONFLICT (content): Merge conflict in %s%n", path));
+            }
+        }
+        if (result.getFailingPaths() != null) {
+            for (String path : result.getFailingPaths().keySet()) {
+                output.append(String.format("error: %s would be overwritten by merge%n", path));
+            }
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Merges two revisions in memory and returns the paths that conflict. Only
+ * the object database is read, the index and the working tree are left
+ * untouched.
+ */
+public class MergeCheck implements RepositoryCallback<List<String>> {
+
+    private final String base;
+    private final String revision;
+
+    public MergeCheck(String base, String revision) {
+        this.base = base;
+        this.revision = revision;
+    }
+
+    public List<String> invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+        ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(repo, true);
+        List<String> conflicts = new ArrayList<String>();
+        if (!merger.merge(JGitBackend.resolve(repo, base), JGitBackend.resolve(repo, revision))) {
+            if (merger.getUnmergedPaths() != null) {
+                conflicts.addAll(merger.getUnmergedPaths());
+            }
+            if (merger.getFailingPaths() != null) {
+                conflicts.addAll(merger.getFailingPaths().keySet());
+            }
+        }
+        return conflicts;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
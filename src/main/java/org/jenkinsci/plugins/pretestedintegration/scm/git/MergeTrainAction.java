@@ -0,0 +1,40 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.model.InvisibleAction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the ready branches a {@link MergeTrainStrategy} build integrated,
+ * and the branches that have been found to break the build, so the next build
+ * can bisect a failed train.
+ */
+public class MergeTrainAction extends InvisibleAction {
+
+    private final List<String> branches;
+    private final Map<String, String> rejected;
+
+    public MergeTrainAction(List<String> branches, Map<String, String> rejected) {
+        this.branches = new ArrayList<String>(branches);
+        this.rejected = new HashMap<String, String>(rejected);
+    }
+
+    /**
+     * @return The names of the remote branches merged by the build, in merge
+     * order
+     */
+    public List<String> getBranches() {
+        return branches;
+    }
+
+    /**
+     * @return Branch name to SHA1 of the branches that failed on their own. A
+     * branch is taken into a train again once its head moves.
+     */
+    public Map<String, String> getRejected() {
+        return rejected;
+    }
+}
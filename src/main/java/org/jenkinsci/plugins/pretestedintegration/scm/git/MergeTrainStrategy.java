@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.plugins.git.Branch;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.pretestedintegration.AbstractSCMBridge;
+import org.jenkinsci.plugins.pretestedintegration.Commit;
+import org.jenkinsci.plugins.pretestedintegration.exceptions.IntegationFailedExeception;
+import org.jenkinsci.plugins.pretestedintegration.IntegrationStrategy;
+import org.jenkinsci.plugins.pretestedintegration.IntegrationStrategyDescriptor;
+import org.jenkinsci.plugins.pretestedintegration.exceptions.NothingToDoException;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Merges a batch of ready branches onto the integration branch with --no-ff,
+ * so they are tested and pushed together. When a train fails the next build
+ * takes the first half of it, until the branch breaking the build is found.
+ * That branch, or the only branch left of a failed train, is left out of
+ * later trains until it is updated.
+ */
+public class MergeTrainStrategy extends IntegrationStrategy {
+
+    private static final String B_NAME = "Merge train";
+    private static final int DEFAULT_BATCH_SIZE = 10;
+    private static final int TRAIN_LOOKBACK = 100;
+    private static final Logger logger = Logger.getLogger(MergeTrainStrategy.class.getName());
+
+    private final int batchSize;
+
+    @DataBoundConstructor
+    public MergeTrainStrategy(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    @Override
+    public void integrate(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener, AbstractSCMBridge bridge, Commit<?> commit) throws IntegationFailedExeception, NothingToDoException {
+        long start = System.currentTimeMillis();
+        try {
+            GitBridge gitbridge = (GitBridge)bridge;
+            GitBackend backend = gitbridge.backend(build, launcher, listener);
+            Branch gitDataBranch = IntegrationSession.of(build).getReadyBranch();
+
+            Map<String, String> pending;
+            try {
+                pending = gitbridge.pendingBranches(build, launcher, listener, gitDataBranch.getName());
+                pending = order(build, gitbridge, backend, pending, gitDataBranch.getName());
+            } catch (Exception ex) {
+                logger.log(Level.SEVERE, "GitClient error", ex);
+                throw new IntegationFailedExeception("GitClient error, unspecified", ex);
+            }
+
+            Map<String, String> rejected = new HashMap<String, String>();
+            List<String> train = nextTrain(build, gitbridge, listener, pending, rejected);
+
+            List<String> merged = new ArrayList<String>();
+            for(String name : train) {
+                String sha = pending.get(name);
+                GitOutput out = new GitOutput(listener.getLogger());
+                int exitCode;
+                try {
+                    List<String> conflicts = backend.conflicts("HEAD", sha);
+                    if(!conflicts.isEmpty()) {
+                        listener.getLogger().println(String.format("Leaving %s out of the train, it conflicts in %s file(s)", name, conflicts.size()));
+                        continue;
+                    }
+                    listener.getLogger().println(String.format("Merging %s(%s) to integration branch %s", name, sha, gitbridge.getBranch()));
+                    exitCode = backend.mergeNoFastForward(sha, String.format("Integrated %s", name), out);
+                } catch (Exception ex) {
+                    throw new IntegationFailedExeception(ex);
+                }
+
+                if(exitCode != 0) {
+                    listener.getLogger().println("Failed to merge changes. Conflicting files below");
+                    for(String path : out.getConflicts()) {
+                        listener.getLogger().println(path);
+                    }
+                    try {
+                        build.setDescription(String.format("Merge conflict"));
+                    } catch (IOException ex) {
+                        logger.log(Level.FINE, "Failed to update description", ex);
+                    }
+                    throw new IntegationFailedExeception();
+                }
+                merged.add(name);
+            }
+
+            build.addAction(new MergeTrainAction(merged, rejected));
+
+            if(merged.isEmpty()) {
+                try {
+                    build.setDescription(String.format("Nothing to do"));
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Failed to update description", ex);
+                }
+                throw new NothingToDoException();
+            }
+            gitbridge.checkoutIntegration(build, launcher, listener);
+            listener.getLogger().println(String.format("Integrated %s branch(es): %s", merged.size(), merged));
+        } finally {
+            IntegrationTimings.record(build, "integrate", start);
+        }
+    }
+
+    /**
+     * Put the pending branches least likely to conflict first, see
+     * {@link TouchedPathsIndex}, so branches touching the same paths do not
+     * ride the same train back to back. Keeps the given order if the
+     * integration tip is unknown or there is nothing to reorder.
+     */
+    private Map<String, String> order(AbstractBuild<?, ?> build, GitBridge gitbridge, GitBackend backend, Map<String, String> pending, String first) throws InterruptedException {
+        if(pending.size() < 3) {
+            return pending;
+        }
+        try {
+            String tip = RefIndex.of(build, backend).getLocalBranch(gitbridge.getBranch());
+            return tip == null ? pending : TouchedPathsIndex.order(build, backend, tip, pending, first);
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Failed to order the pending branches by touched paths", ex);
+            return pending;
+        }
+    }
+
+    /**
+     * Pick the branches for this build. Bisects the train of the last build
+     * that ran one if it failed, otherwise takes up to batch size pending
+     * branches.
+     */
+    List<String> nextTrain(AbstractBuild<?,?> build, GitBridge gitbridge, BuildListener listener, Map<String, String> pending, Map<String, String> rejected) {
+        AbstractBuild<?,?> previous = lastTrainBuild(build);
+        MergeTrainAction last = previous != null ? previous.getAction(MergeTrainAction.class) : null;
+
+        if(last != null) {
+            rejected.putAll(last.getRejected());
+            if(previous.getResult() != null && !gitbridge.meetsRequiredResult(previous.getResult())) {
+                List<String> remaining = new ArrayList<String>();
+                for(String name : last.getBranches()) {
+                    if(pending.containsKey(name)) {
+                        remaining.add(name);
+                    }
+                }
+
+                if(remaining.size() == 1) {
+                    String bad = remaining.get(0);
+                    if(last.getBranches().size() == 1) {
+                        listener.getLogger().println(String.format("%s failed on its own, leaving it out until it is updated", bad));
+                    } else {
+                        listener.getLogger().println(String.format("%s is all that is left of the failed train %s, leaving it out until it is updated", bad, last.getBranches()));
+                    }
+                    rejected.put(bad, pending.get(bad));
+                } else if(remaining.size() > 1) {
+                    List<String> half = new ArrayList<String>(remaining.subList(0, (remaining.size() + 1) / 2));
+                    listener.getLogger().println(String.format("Previous train failed, bisecting with %s", half));
+                    return half;
+                }
+            }
+        }
+
+        Iterator<Map.Entry<String, String>> it = rejected.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            if(!entry.getValue().equals(pending.get(entry.getKey()))) {
+                it.remove();
+            }
+        }
+
+        List<String> train = new ArrayList<String>();
+        for(String name : pending.keySet()) {
+            if(train.size() >= getBatchSize()) {
+                break;
+            }
+            if(!rejected.containsKey(name)) {
+                train.add(name);
+            }
+        }
+        return train;
+    }
+
+    /**
+     * @return The latest build before the given one that recorded a train, so
+     * builds that stopped before integrating do not reset the bisection. Looks
+     * back at most {@link #TRAIN_LOOKBACK} builds, null if none of them did.
+     */
+    private static AbstractBuild<?,?> lastTrainBuild(AbstractBuild<?,?> build) {
+        AbstractBuild<?,?> previous = build.getPreviousBuild();
+        for(int n = 0; previous != null && n < TRAIN_LOOKBACK; n++) {
+            if(previous.getAction(MergeTrainAction.class) != null) {
+                return previous;
+            }
+            previous = previous.getPreviousBuild();
+        }
+        return null;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends IntegrationStrategyDescriptor<MergeTrainStrategy> {
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return B_NAME;
+        }
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractSCMBridge> bridge) {
+            return GitBridge.class.equals(bridge);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Rolls the checked out branch back to a revision without going over the
+ * whole working tree. The paths the integration touched are the ones that
+ * differ between the revision and the branch tip, plus the ones staged or
+ * left unmerged in the index. Only those are restored in the index and the
+ * working tree before the branch ref is moved back, so the work is
+ * proportional to the size of the integrated change. The index is rebuilt
+ * with all stages of those paths replaced by their entry in the revision, and
+ * the rollback fails if any unmerged entry is left. Changes made outside
+ * the integration, like files written by the build, are left alone.
+ */
+public class PathRollback implements RepositoryCallback<JGitBackend.Result> {
+
+    private final String revision;
+
+    public PathRollback(String revision) {
+        this.revision = revision;
+    }
+
+    public JGitBackend.Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+        ObjectId target = JGitBackend.resolve(repo, revision);
+        ObjectId head = repo.resolve(Constants.HEAD);
+        RevWalk walk = new RevWalk(repo);
+        Set<String> paths = new TreeSet<String>();
+        DirCache index = repo.lockDirCache();
+        try {
+            RevTree targetTree = walk.parseCommit(target).getTree();
+            if (head != null && !head.equals(target)) {
+                paths.addAll(Replay.changedPaths(repo, targetTree, walk.parseCommit(head).getTree()));
+            }
+            paths.addAll(staged(repo, targetTree, index));
+            paths.addAll(unmerged(index));
+
+            DirCacheBuilder builder = index.builder();
+            for (int i = 0; i < index.getEntryCount(); i++) {
+                if (!paths.contains(index.getEntry(i).getPathString())) {
+                    builder.keep(i, 1);
+                }
+            }
+            for (String path : paths) {
+                File file = new File(repo.getWorkTree(), path);
+                TreeWalk tw = TreeWalk.forPath(repo, path, targetTree);
+                if (tw == null) {
+                    if (file.isFile() && !file.delete()) {
+                        return JGitBackend.Result.failed(String.format("error: could not remove %s%n", path));
+                    }
+                    deleteEmptyParents(repo.getWorkTree(), file);
+                    continue;
+                }
+                try {
+                    DirCacheEntry restored = new DirCacheEntry(path);
+                    restored.setFileMode(tw.getFileMode(0));
+                    restored.setObjectId(tw.getObjectId(0));
+                    if (tw.getFileMode(0) != FileMode.GITLINK) {
+                        file.getParentFile().mkdirs();
+                        DirCacheCheckout.checkoutEntry(repo, file, restored);
+                    }
+                    builder.add(restored);
+                } finally {
+                    tw.release();
+                }
+            }
+            builder.commit();
+        } finally {
+            index.unlock();
+            walk.release();
+        }
+
+        Set<String> left = unmerged(repo.readDirCache());
+        if (!left.isEmpty()) {
+            return JGitBackend.Result.failed(String.format("error: %s still unmerged after rollback%n", left));
+        }
+
+        RefUpdate update = repo.updateRef(Constants.HEAD);
+        update.setNewObjectId(target);
+        update.setRefLogMessage(String.format("rollback: moving to %s", revision), false);
+        RefUpdate.Result moved = update.forceUpdate();
+        if (moved != RefUpdate.Result.FORCED && moved != RefUpdate.Result.NO_CHANGE && moved != RefUpdate.Result.NEW && moved != RefUpdate.Result.FAST_FORWARD) {
+            return JGitBackend.Result.failed(String.format("error: could not move HEAD to %s: %s%n", revision, moved));
+        }
+        repo.writeMergeHeads(null);
+        repo.writeMergeCommitMsg(null);
+        repo.writeSquashCommitMsg(null);
+        File mergeMode = new File(repo.getDirectory(), "MERGE_MODE");
+        if (mergeMode.exists() && !mergeMode.delete()) {
+            return JGitBackend.Result.failed(String.format("error: could not remove %s%n", mergeMode));
+        }
+        return JGitBackend.Result.ok(String.format("HEAD is now at %s, restored %d path(s)%n", revision, paths.size()));
+    }
+
+    /**
+     * @return The paths whose index entries differ from the tree, including
+     * unmerged ones
+     */
+    private static Set<String> staged(Repository repo, RevTree tree, DirCache index) throws IOException {
+        Set<String> paths = new TreeSet<String>();
+        TreeWalk tw = new TreeWalk(repo);
+        try {
+            tw.setRecursive(true);
+            tw.setFilter(TreeFilter.ANY_DIFF);
+            tw.addTree(tree);
+            tw.addTree(new DirCacheIterator(index));
+            while (tw.next()) {
+                paths.add(tw.getPathString());
+            }
+        } finally {
+            tw.release();
+        }
+        return paths;
+    }
+
+    /**
+     * @return The paths with entries left in the conflict stages of the index
+     */
+    private static Set<String> unmerged(DirCache index) {
+        Set<String> paths = new TreeSet<String>();
+        for (int i = 0; i < index.getEntryCount(); i++) {
+            DirCacheEntry entry = index.getEntry(i);
+            if (entry.getStage() != DirCacheEntry.STAGE_0) {
+                paths.add(entry.getPathString());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Delete the directories left empty by removing a file, up to the root of
+     * the working tree.
+     */
+    private static void deleteEmptyParents(File workTree, File file) {
+        File dir = file.getParentFile();
+        while (dir != null && !dir.equals(workTree)) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,29 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.InvisibleAction;
+
+/**
+ * The pooled worktree a build integrated in, see {@link WorktreePool}. The
+ * path is exported to the build environment as PRETESTED_WORKTREE. The build
+ * steps test the integration in the workspace of the job, where it is checked
+ * out from the worktree.
+ */
+public class PooledWorktreeAction extends InvisibleAction implements EnvironmentContributingAction {
+
+    private final String path;
+
+    public PooledWorktreeAction(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        env.put("PRETESTED_WORKTREE", path);
+    }
+}
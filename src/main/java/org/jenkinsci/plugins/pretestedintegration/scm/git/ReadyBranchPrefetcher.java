@@ -0,0 +1,243 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Fetches the branches of the remote into a workspace in the background,
+ * while the build that scheduled it runs its tests. The refs are written to
+ * their own namespace, so the refs the running build works with do not move.
+ * Only the objects matter: once they are in the object store, the fetch of
+ * the next build has nothing left to transfer.
+ * <p>
+ * At most one prefetch runs per workspace, no more often than
+ * {@link #MIN_INTERVAL} apart, and at most {@link #MAX_CONCURRENT} at a time.
+ * The prefetches of a job are cancelled, and awaited for at most
+ * {@link #CANCEL_TIMEOUT}, when a build of the job starts, before the SCM
+ * checks out the workspace, so the two never run git in it together.
+ */
+public final class ReadyBranchPrefetcher {
+
+    static final String NAMESPACE = "refs/prefetch/remotes/";
+    static final long MIN_INTERVAL = 30 * 1000;
+    static final int MAX_CONCURRENT = 2;
+    static final long CANCEL_TIMEOUT = 30 * 1000;
+
+    private static final Semaphore slots = new Semaphore(MAX_CONCURRENT);
+    private static final Map<String, Fetching> running = new HashMap<String, Fetching>();
+    private static final Map<String, Long> lastStarted = new HashMap<String, Long>();
+    private static final Logger logger = Logger.getLogger(ReadyBranchPrefetcher.class.getName());
+
+    private ReadyBranchPrefetcher() { }
+
+    private static String key(FilePath workspace) {
+        return String.format("%s:%s", workspace.getChannel(), workspace.getRemote());
+    }
+
+    /**
+     * Start prefetching the branches of the remote into the workspace, unless
+     * a prefetch of it is running or started recently.
+     *
+     * @param job The full name of the job the workspace belongs to
+     * @param workspace A workspace with a clone of the repository
+     * @param gitExe The git executable to fetch with, null to fetch in-process
+     * with JGit
+     * @param remote The remote to fetch from
+     */
+    public static void schedule(String job, FilePath workspace, String gitExe, String remote) {
+        String key = key(workspace);
+        synchronized (running) {
+            Long last = lastStarted.get(key);
+            if (running.containsKey(key) || (last != null && System.currentTimeMillis() - last < MIN_INTERVAL)) {
+                return;
+            }
+            lastStarted.put(key, System.currentTimeMillis());
+            Fetching fetching = new Fetching(key, job, workspace, gitExe, remote);
+            running.put(key, fetching);
+            fetching.future = Computer.threadPoolForRemoting.submit(fetching);
+        }
+    }
+
+    /**
+     * Stop the prefetch of the workspace, if one is running, and wait for it
+     * to end.
+     */
+    public static void cancel(FilePath workspace) {
+        Fetching fetching;
+        synchronized (running) {
+            fetching = running.remove(key(workspace));
+        }
+        if (fetching != null) {
+            fetching.cancel();
+        }
+    }
+
+    /**
+     * Stop the prefetches into the workspaces of the job, if any are running,
+     * and wait for them to end.
+     */
+    public static void cancelJob(String job) {
+        List<Fetching> cancelled = new ArrayList<Fetching>();
+        synchronized (running) {
+            for (Fetching fetching : new ArrayList<Fetching>(running.values())) {
+                if (fetching.job.equals(job)) {
+                    running.remove(fetching.key);
+                    cancelled.add(fetching);
+                }
+            }
+        }
+        for (Fetching fetching : cancelled) {
+            fetching.cancel();
+        }
+    }
+
+    private static void prefetch(FilePath workspace, String gitExe, String remote) {
+        if (!slots.tryAcquire()) {
+            logger.fine(String.format("Skipped prefetch into %s, %d already running", workspace.getRemote(), MAX_CONCURRENT));
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String refspec = String.format("+refs/heads/*:%s%s/*", NAMESPACE, remote);
+        GitOutput out = new GitOutput();
+        try {
+            StreamTaskListener listener = new StreamTaskListener(out);
+            if (gitExe == null) {
+                org.jenkinsci.plugins.gitclient.Git.with(listener, new EnvVars()).in(workspace).using(GitBackend.JGIT).getClient()
+                        .withRepository(new Prefetch(remote, refspec));
+            } else {
+                ArgumentListBuilder args = new ArgumentListBuilder(gitExe, "fetch", "--prune", "--no-tags", "--quiet", remote, refspec);
+                if (workspace.createLauncher(listener).launch().cmds(args).pwd(workspace).stdout(out).join() != 0) {
+                    logger.fine(String.format("Prefetch into %s failed:%n%s", workspace.getRemote(), out.toString()));
+                    return;
+                }
+            }
+            logger.fine(String.format("Prefetched %s into %s in %d ms", remote, workspace.getRemote(), System.currentTimeMillis() - start));
+        } catch (InterruptedException ex) {
+            logger.fine(String.format("Prefetch into %s interrupted", workspace.getRemote()));
+        } catch (IOException ex) {
+            logger.log(Level.FINE, String.format("Prefetch into %s failed", workspace.getRemote()), ex);
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * A scheduled prefetch. Counts down once it ran, so cancelling can wait
+     * for the git process to be gone.
+     */
+    private static final class Fetching implements Runnable {
+
+        private final String key;
+        private final String job;
+        private final FilePath workspace;
+        private final String gitExe;
+        private final String remote;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean started;
+        private volatile Future<?> future;
+
+        Fetching(String key, String job, FilePath workspace, String gitExe, String remote) {
+            this.key = key;
+            this.job = job;
+            this.workspace = workspace;
+            this.gitExe = gitExe;
+            this.remote = remote;
+        }
+
+        public void run() {
+            started = true;
+            try {
+                if (!Thread.currentThread().isInterrupted()) {
+                    prefetch(workspace, gitExe, remote);
+                }
+            } finally {
+                synchronized (running) {
+                    if (running.get(key) == this) {
+                        running.remove(key);
+                    }
+                }
+                done.countDown();
+            }
+        }
+
+        void cancel() {
+            Future<?> submitted = future;
+            if (submitted == null || !submitted.cancel(true) || !started) {
+                return;
+            }
+            try {
+                if (done.await(CANCEL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logger.fine(String.format("Cancelled prefetch into %s", workspace.getRemote()));
+                } else {
+                    logger.warning(String.format("Prefetch into %s did not stop within %d ms", workspace.getRemote(), CANCEL_TIMEOUT));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Cancels the prefetches of a job when one of its builds starts, before
+     * the SCM checks out the workspace.
+     */
+    @Extension
+    public static final class Canceller extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            cancelJob(run.getParent().getFullName());
+        }
+    }
+
+    /**
+     * Fetches with JGit, pruning refs gone from the remote.
+     */
+    private static final class Prefetch implements RepositoryCallback<Void> {
+
+        private final String remote;
+        private final String refspec;
+
+        Prefetch(String remote, String refspec) {
+            this.remote = remote;
+            this.refspec = refspec;
+        }
+
+        public Void invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            try {
+                Git.wrap(repo).fetch().setRemote(remote).setRefSpecs(new RefSpec(refspec)).setRemoveDeletedRefs(true).call();
+            } catch (GitAPIException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
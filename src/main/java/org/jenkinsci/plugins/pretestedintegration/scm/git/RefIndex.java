@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * The local and remote tracking branches of a workspace repository, read once
+ * from the loose and packed refs and cached per workspace. The cache is
+ * invalidated when the packed refs, FETCH_HEAD or the HEAD reflog change,
+ * which covers fetches, ref packing and moves of the checked out branch, or
+ * explicitly through {@link #invalidate(AbstractBuild)}.
+ */
+public final class RefIndex {
+
+    private static final ConcurrentMap<String, RefIndex> cache = new ConcurrentHashMap<String, RefIndex>();
+
+    private final String fingerprint;
+    private final Map<String, String> local;
+    private final SortedMap<String, String> remote;
+
+    private RefIndex(String fingerprint, Map<String, String> local, SortedMap<String, String> remote) {
+        this.fingerprint = fingerprint;
+        this.local = local;
+        this.remote = remote;
+    }
+
+    /**
+     * @return The index for the workspace of the build, read again only if the
+     * refs changed since it was cached
+     */
+    public static RefIndex of(AbstractBuild<?, ?> build, GitBackend backend) throws IOException, InterruptedException {
+        String key = key(build);
+        String fingerprint = fingerprint(WorktreePool.workspace(build));
+        RefIndex index = cache.get(key);
+        if (index == null || !index.fingerprint.equals(fingerprint)) {
+            long start = System.currentTimeMillis();
+            Refs refs = backend.client().withRepository(new ReadRefs());
+            index = new RefIndex(fingerprint, refs.local, new TreeMap<String, String>(refs.remote));
+            cache.put(key, index);
+            IntegrationTimings.record(build, "refScan", start);
+        }
+        return index;
+    }
+
+    /**
+     * Drop the cached index for the workspace of the build, for ref changes
+     * the fingerprint does not catch.
+     */
+    public static void invalidate(AbstractBuild<?, ?> build) {
+        cache.remove(key(build));
+    }
+
+    private static String key(AbstractBuild<?, ?> build) {
+        return String.format("%s:%s", build.getBuiltOnStr(), WorktreePool.workspace(build).getRemote());
+    }
+
+    private static String fingerprint(FilePath workspace) throws IOException, InterruptedException {
+        FilePath git = workspace.child(Constants.DOT_GIT);
+        return String.format("%d:%d:%d",
+                git.child(Constants.PACKED_REFS).lastModified(),
+                git.child(Constants.FETCH_HEAD).lastModified(),
+                git.child(Constants.LOGS).child(Constants.HEAD).lastModified());
+    }
+
+    /**
+     * @param name A local branch name, like master
+     * @return The SHA1 of the branch, null if there is no such branch
+     */
+    public String getLocalBranch(String name) {
+        return local.get(name);
+    }
+
+    /**
+     * @param name A remote tracking branch name, like origin/ready/feature
+     * @return The SHA1 of the branch, null if there is no such branch
+     */
+    public String getRemoteBranch(String name) {
+        return remote.get(name);
+    }
+
+    /**
+     * @return Name to SHA1 of the remote tracking branches, sorted by name
+     */
+    public SortedMap<String, String> getRemoteBranches() {
+        return Collections.unmodifiableSortedMap(remote);
+    }
+
+    private static final class Refs implements Serializable {
+
+        final HashMap<String, String> local = new HashMap<String, String>();
+        final HashMap<String, String> remote = new HashMap<String, String>();
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class ReadRefs implements RepositoryCallback<Refs> {
+
+        public Refs invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            Refs refs = new Refs();
+            for (Ref ref : repo.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+                if (ref.getObjectId() == null || ref.isSymbolic()) {
+                    continue;
+                }
+                if (ref.getName().startsWith(Constants.R_HEADS)) {
+                    refs.local.put(ref.getName().substring(Constants.R_HEADS.length()), ref.getObjectId().name());
+                } else if (ref.getName().startsWith(Constants.R_REMOTES)) {
+                    refs.remote.put(ref.getName().substring(Constants.R_REMOTES.length()), ref.getObjectId().name());
+                }
+            }
+            return refs;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,174 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.errors.CheckoutConflictException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Replays the integrated change on the checked out branch onto a remote tip
+ * that moved while the change was being tested. The replay is only done when
+ * the change and the commits that landed in between touch no common paths,
+ * so the tested result still holds.
+ */
+public class Replay implements RepositoryCallback<Replay.Result> {
+
+    public enum Status { REPLAYED, NOT_MOVED, OVERLAP }
+
+    private final String base;
+    private final String remoteRef;
+
+    /**
+     * @param base The integration tip the change was made on
+     * @param remoteRef The ref holding the fetched remote tip
+     */
+    public Replay(String base, String remoteRef) {
+        this.base = base;
+        this.remoteRef = remoteRef;
+    }
+
+    public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+        Ref head = repo.getRef(Constants.HEAD);
+        if (head == null || !head.isSymbolic()) {
+            throw new IOException("HEAD is not on a branch");
+        }
+
+        RevWalk walk = new RevWalk(repo);
+        try {
+            RevCommit ours = walk.parseCommit(head.getObjectId());
+            RevCommit start = walk.parseCommit(JGitBackend.resolve(repo, base));
+            RevCommit theirs = walk.parseCommit(JGitBackend.resolve(repo, remoteRef));
+            if (theirs.equals(start) || walk.isMergedInto(theirs, ours)) {
+                return new Result(Status.NOT_MOVED, null, theirs.name(), new ArrayList<String>());
+            }
+
+            Set<String> overlap = changedPaths(repo, start.getTree(), ours.getTree());
+            overlap.retainAll(changedPaths(repo, start.getTree(), theirs.getTree()));
+            if (!overlap.isEmpty()) {
+                return new Result(Status.OVERLAP, null, theirs.name(), new ArrayList<String>(overlap));
+            }
+
+            ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(repo, true);
+            merger.setBase(start);
+            if (!merger.merge(theirs, ours)) {
+                List<String> conflicts = new ArrayList<String>();
+                if (merger.getUnmergedPaths() != null) {
+                    conflicts.addAll(merger.getUnmergedPaths());
+                }
+                return new Result(Status.OVERLAP, null, theirs.name(), conflicts);
+            }
+
+            List<AnyObjectId> parents = new ArrayList<AnyObjectId>();
+            parents.add(theirs);
+            if (ours.getParentCount() > 0 && ours.getParent(0).equals(start)) {
+                for (int i = 1; i < ours.getParentCount(); i++) {
+                    parents.add(ours.getParent(i));
+                }
+            } else {
+                parents.add(ours);
+            }
+
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(merger.getResultTreeId());
+            commit.setParentIds(parents);
+            commit.setAuthor(ours.getAuthorIdent());
+            commit.setCommitter(new PersonIdent(repo));
+            commit.setMessage(ours.getFullMessage());
+
+            ObjectId id;
+            ObjectInserter inserter = repo.newObjectInserter();
+            try {
+                id = inserter.insert(commit);
+                inserter.flush();
+            } finally {
+                inserter.release();
+            }
+
+            DirCacheCheckout checkout = new DirCacheCheckout(repo, ours.getTree(), repo.lockDirCache(), merger.getResultTreeId());
+            checkout.setFailOnConflict(true);
+            try {
+                checkout.checkout();
+            } catch (CheckoutConflictException ex) {
+                return new Result(Status.OVERLAP, null, theirs.name(), new ArrayList<String>(checkout.getConflicts()));
+            }
+
+            RefUpdate update = repo.updateRef(head.getTarget().getName());
+            update.setNewObjectId(id);
+            update.setExpectedOldObjectId(ours);
+            update.setForceUpdate(true);
+            update.setRefLogMessage("replay: onto " + theirs.name(), false);
+            RefUpdate.Result updated = update.update(walk);
+            if (updated != RefUpdate.Result.FORCED && updated != RefUpdate.Result.FAST_FORWARD) {
+                throw new IOException(String.format("Failed to move %s to %s: %s", head.getTarget().getName(), id.name(), updated));
+            }
+            return new Result(Status.REPLAYED, id.name(), theirs.name(), new ArrayList<String>());
+        } finally {
+            walk.release();
+        }
+    }
+
+    static Set<String> changedPaths(Repository repo, RevTree from, RevTree to) throws IOException {
+        Set<String> paths = new HashSet<String>();
+        TreeWalk tw = new TreeWalk(repo);
+        try {
+            tw.setRecursive(true);
+            tw.setFilter(TreeFilter.ANY_DIFF);
+            tw.addTree(from);
+            tw.addTree(to);
+            while (tw.next()) {
+                paths.add(tw.getPathString());
+            }
+        } finally {
+            tw.release();
+        }
+        return paths;
+    }
+
+    /**
+     * Outcome of the replay, carried back from the node.
+     */
+    public static final class Result implements Serializable {
+
+        public final Status status;
+        /** The replayed commit */
+        public final String sha1;
+        /** The remote tip the change was replayed onto, the lease for the push */
+        public final String expected;
+        public final List<String> paths;
+
+        Result(Status status, String sha1, String expected, List<String> paths) {
+            this.status = status;
+            this.sha1 = sha1;
+            this.expected = expected;
+            this.paths = paths;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,459 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps integration workspaces fast as merges, rollbacks and branch churn
+ * pile up. Workspaces are registered by the builds integrating in them, and
+ * maintained in the background once they have seen integrations and were
+ * not maintained for {@link #MIN_INTERVAL}: refs are packed, stale
+ * remote-tracking refs pruned, loose objects packed, packs consolidated
+ * incrementally behind a multi-pack index and commit-graphs written.
+ * Workspaces integrated in with the in-process backend are not maintained,
+ * as JGit only offers a full garbage collection that cannot be stopped
+ * part way.
+ * <p>
+ * Only the workspaces of jobs are maintained, and only while the job is not
+ * building. The prefetch into the workspace is cancelled first. When a build
+ * of the job starts, the running step is killed and the build waits for
+ * maintenance to end, at most {@link #STOP_TIMEOUT}. Each run is bounded by
+ * {@link #BUDGET}, checked between steps. The cost of a ref scan and a
+ * history walk is measured before and after, and the latest reports of at
+ * most {@link #MAX_REPORTS} workspaces are served with the
+ * {@link IntegrationMetrics}.
+ */
+public final class RepositoryMaintenance {
+
+    static final long MIN_INTERVAL = 6 * 60 * 60 * 1000;
+    static final long BUDGET = 10 * 60 * 1000;
+    static final String REPACK_BATCH_SIZE = "512m";
+    static final long STOP_TIMEOUT = 30 * 1000;
+    static final int MAX_REPORTS = 100;
+
+    private static final Pattern COUNT = Pattern.compile("^(count|packs): (\\d+)$", Pattern.MULTILINE);
+
+    private static final Map<String, Target> targets = new HashMap<String, Target>();
+    private static final Map<String, Report> reports = new LinkedHashMap<String, Report>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Report> eldest) {
+            return size() > MAX_REPORTS;
+        }
+    };
+    private static final Logger logger = Logger.getLogger(RepositoryMaintenance.class.getName());
+
+    private RepositoryMaintenance() { }
+
+    private static String key(String node, String path) {
+        return String.format("%s:%s", node, path);
+    }
+
+    /**
+     * Register the workspace of the build for maintenance.
+     *
+     * @param gitExe The git executable to maintain with, null if the build
+     * integrates in-process with JGit, which leaves the workspace out
+     */
+    public static void register(AbstractBuild<?, ?> build, String gitExe) {
+        String key = key(build.getBuiltOnStr(), build.getWorkspace().getRemote());
+        synchronized (targets) {
+            if (gitExe == null) {
+                targets.remove(key);
+                return;
+            }
+            Target target = targets.get(key);
+            if (target == null) {
+                target = new Target(build.getBuiltOnStr(), build.getWorkspace().getRemote());
+                targets.put(key, target);
+            }
+            target.job = build.getProject().getFullName();
+            target.gitExe = gitExe;
+            target.integrations++;
+        }
+    }
+
+    /**
+     * Stop the maintenance of the workspaces of the job, killing the running
+     * step, and wait for it to end.
+     */
+    static void stop(String job) {
+        List<Target> stopping = new ArrayList<Target>();
+        synchronized (targets) {
+            for (Target target : targets.values()) {
+                if (target.job.equals(job) && target.done != null) {
+                    target.stop = true;
+                    stopping.add(target);
+                }
+            }
+        }
+        for (Target target : stopping) {
+            CountDownLatch done;
+            Proc step;
+            synchronized (targets) {
+                done = target.done;
+                step = target.step;
+            }
+            if (done == null) {
+                continue;
+            }
+            try {
+                if (step != null) {
+                    step.kill();
+                }
+                if (!done.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logger.warning(String.format("Maintenance of %s did not stop within %d ms", target.path, STOP_TIMEOUT));
+                }
+            } catch (IOException ex) {
+                logger.log(Level.FINE, String.format("Failed to stop maintenance of %s", target.path), ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget the workspace and its report.
+     */
+    private static void forget(Target target) {
+        synchronized (targets) {
+            targets.values().remove(target);
+        }
+        synchronized (reports) {
+            reports.remove(key(target.node, target.path));
+        }
+    }
+
+    /**
+     * @return The latest maintenance report per workspace
+     */
+    public static Map<String, Report> getReports() {
+        synchronized (reports) {
+            return Collections.unmodifiableMap(new HashMap<String, Report>(reports));
+        }
+    }
+
+    /**
+     * Maintain the workspaces due, until the budget is spent.
+     */
+    static void run(TaskListener listener) {
+        List<Target> due = new ArrayList<Target>();
+        long now = System.currentTimeMillis();
+        synchronized (targets) {
+            for (Target target : targets.values()) {
+                if (target.integrations > 0 && now - target.lastRun >= MIN_INTERVAL) {
+                    due.add(target);
+                }
+            }
+        }
+
+        long deadline = now + BUDGET;
+        for (Target target : due) {
+            if (System.currentTimeMillis() >= deadline) {
+                listener.getLogger().println(String.format("Maintenance budget spent, %s left for the next run", target.path));
+                continue;
+            }
+            AbstractProject<?, ?> job = Jenkins.getInstance().getItemByFullName(target.job, AbstractProject.class);
+            if (job == null) {
+                forget(target);
+                continue;
+            }
+            synchronized (targets) {
+                target.stop = false;
+                target.done = new CountDownLatch(1);
+            }
+            try {
+                // Marked as running first, so a build starting from here on stops it
+                if (job.isBuilding()) {
+                    continue;
+                }
+                Report report = maintain(target, listener, deadline);
+                if (report == null) {
+                    continue;
+                }
+                synchronized (targets) {
+                    target.lastRun = System.currentTimeMillis();
+                    target.integrations = 0;
+                }
+                synchronized (reports) {
+                    reports.put(key(target.node, target.path), report);
+                }
+                IntegrationMetrics.record("maintenance", report.getDurationMillis());
+                listener.getLogger().println(report);
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, String.format("Maintenance of %s failed", target.path), ex);
+            } finally {
+                CountDownLatch done;
+                synchronized (targets) {
+                    done = target.done;
+                    target.done = null;
+                    target.step = null;
+                }
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * @return The report, null if the node of the workspace is offline, the
+     * workspace is gone or maintenance was stopped before it began
+     */
+    private static Report maintain(Target target, TaskListener listener, long deadline) throws IOException, InterruptedException {
+        Node node = target.node.isEmpty() ? Jenkins.getInstance() : Jenkins.getInstance().getNode(target.node);
+        FilePath workspace = node == null ? null : node.createPath(target.path);
+        if (workspace == null) {
+            return null;
+        }
+        if (!workspace.child(".git").exists()) {
+            forget(target);
+            return null;
+        }
+        ReadyBranchPrefetcher.cancel(workspace);
+        if (target.stop) {
+            return null;
+        }
+
+        Report report = new Report(target.path);
+        long start = System.currentTimeMillis();
+        long[] counts = count(workspace, target.gitExe, listener);
+        report.looseBefore = counts[0];
+        report.packsBefore = counts[1];
+        report.probeBeforeMillis = probe(workspace, target.gitExe, listener);
+
+        Map<String, String[]> steps = new LinkedHashMap<String, String[]>();
+        steps.put("packRefs", new String[] { "pack-refs", "--all", "--prune" });
+        steps.put("pruneRemote", new String[] { "remote", "prune", "origin" });
+        steps.put("packLoose", new String[] { "repack", "-d", "-l", "-q" });
+        steps.put("midxWrite", new String[] { "multi-pack-index", "write" });
+        steps.put("midxExpire", new String[] { "multi-pack-index", "expire" });
+        steps.put("midxRepack", new String[] { "multi-pack-index", "repack", "--batch-size=" + REPACK_BATCH_SIZE });
+        steps.put("commitGraph", new String[] { "commit-graph", "write", "--reachable", "--split" });
+        for (Map.Entry<String, String[]> step : steps.entrySet()) {
+            if (System.currentTimeMillis() >= deadline || target.stop) {
+                listener.getLogger().println(String.format("Stopping maintenance of %s before %s", target.path, step.getKey()));
+                break;
+            }
+            long stepStart = System.currentTimeMillis();
+            GitOutput out = new GitOutput();
+            if (step(target, workspace, listener, out, step.getValue()) != 0) {
+                listener.getLogger().println(String.format("%s failed in %s:%n%s", step.getKey(), target.path, out.toString()));
+            }
+            report.steps.put(step.getKey(), System.currentTimeMillis() - stepStart);
+        }
+
+        if (target.stop) {
+            return null;
+        }
+        counts = count(workspace, target.gitExe, listener);
+        report.looseAfter = counts[0];
+        report.packsAfter = counts[1];
+        report.probeAfterMillis = probe(workspace, target.gitExe, listener);
+        report.durationMillis = System.currentTimeMillis() - start;
+        return report;
+    }
+
+    /**
+     * Run a maintenance step, which {@link #stop(String)} may kill.
+     */
+    private static int step(Target target, FilePath workspace, TaskListener listener, GitOutput out, String... cmds) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder(target.gitExe);
+        args.add(cmds);
+        Proc proc = workspace.createLauncher(listener).launch().cmds(args).pwd(workspace).stdout(out).start();
+        synchronized (targets) {
+            target.step = proc;
+        }
+        try {
+            if (target.stop) {
+                proc.kill();
+            }
+            return proc.join();
+        } finally {
+            synchronized (targets) {
+                target.step = null;
+            }
+        }
+    }
+
+    private static int git(FilePath workspace, String gitExe, TaskListener listener, GitOutput out, String... cmds) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder(gitExe);
+        args.add(cmds);
+        return workspace.createLauncher(listener).launch().cmds(args).pwd(workspace).stdout(out).join();
+    }
+
+    /**
+     * @return The time to list all refs and walk the history of HEAD, in
+     * milliseconds
+     */
+    private static long probe(FilePath workspace, String gitExe, TaskListener listener) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        git(workspace, gitExe, listener, new GitOutput(), "for-each-ref");
+        git(workspace, gitExe, listener, new GitOutput(), "rev-list", "--count", "HEAD");
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * @return The number of loose objects and of packs
+     */
+    private static long[] count(FilePath workspace, String gitExe, TaskListener listener) throws IOException, InterruptedException {
+        GitOutput out = new GitOutput();
+        long[] counts = new long[2];
+        if (git(workspace, gitExe, listener, out, "count-objects", "-v") == 0) {
+            Matcher m = COUNT.matcher(out.toString());
+            while (m.find()) {
+                counts["count".equals(m.group(1)) ? 0 : 1] = Long.parseLong(m.group(2));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * A workspace registered for maintenance.
+     */
+    private static final class Target {
+
+        final String node;
+        final String path;
+        String job;
+        String gitExe;
+        /** Integrations since the last maintenance */
+        int integrations;
+        long lastRun;
+        /** Set while maintenance runs, counted down when it ends */
+        CountDownLatch done;
+        /** The step running, if any */
+        Proc step;
+        volatile boolean stop;
+
+        Target(String node, String path) {
+            this.node = node;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The outcome of one maintenance of a workspace.
+     */
+    public static final class Report {
+
+        private final String path;
+        private final long time = System.currentTimeMillis();
+        private long durationMillis;
+        private long probeBeforeMillis;
+        private long probeAfterMillis;
+        private long looseBefore;
+        private long looseAfter;
+        private long packsBefore;
+        private long packsAfter;
+        /** Step name to its duration in milliseconds, in the order run */
+        private final Map<String, Long> steps = new LinkedHashMap<String, Long>();
+
+        Report(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public long getProbeBeforeMillis() {
+            return probeBeforeMillis;
+        }
+
+        public long getProbeAfterMillis() {
+            return probeAfterMillis;
+        }
+
+        public long getLooseBefore() {
+            return looseBefore;
+        }
+
+        public long getLooseAfter() {
+            return looseAfter;
+        }
+
+        public long getPacksBefore() {
+            return packsBefore;
+        }
+
+        public long getPacksAfter() {
+            return packsAfter;
+        }
+
+        public Map<String, Long> getSteps() {
+            return Collections.unmodifiableMap(steps);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Maintained %s in %d ms %s: probe %d -> %d ms, loose objects %d -> %d, packs %d -> %d",
+                    path, durationMillis, steps, probeBeforeMillis, probeAfterMillis, looseBefore, looseAfter, packsBefore, packsAfter);
+        }
+    }
+
+    /**
+     * Maintains the workspaces due every fifteen minutes.
+     */
+    @Extension
+    public static final class Scheduler extends AsyncPeriodicWork {
+
+        public Scheduler() {
+            super("Pretested integration repository maintenance");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return 15 * MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            run(listener);
+        }
+    }
+
+    /**
+     * Stops the maintenance of the workspaces of a job when one of its
+     * builds starts, before the SCM checks out the workspace.
+     */
+    @Extension
+    public static final class Yielder extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            stop(run.getParent().getFullName());
+        }
+    }
+}
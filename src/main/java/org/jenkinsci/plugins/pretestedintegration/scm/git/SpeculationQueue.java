@@ -0,0 +1,208 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Chains the concurrent builds integrating into the same target branch into
+ * speculative integration candidates. A build joining the queue integrates
+ * its ready branch on top of the candidate of the build ahead of it, so with
+ * ready branches A, B and C the builds test the integration tip + A, + A + B
+ * and + A + B + C at the same time, each in its own pooled worktree.
+ * <p>
+ * Candidates are pushed in queue order: a build only pushes once every build
+ * ahead of it pushed or failed. A candidate built on a candidate that failed
+ * holds the failed change too, so it is dropped instead of pushed, and its
+ * ready branch is built again on what did get pushed.
+ */
+public final class SpeculationQueue {
+
+    public enum State { INTEGRATING, PUSHED, DROPPED }
+
+    /** Lock key to the candidates in flight in queue order, guarded by itself */
+    private static final Map<String, List<Candidate>> queues = new HashMap<String, List<Candidate>>();
+    /** Holder to its candidate, guarded by queues */
+    private static final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+    private static final Logger logger = Logger.getLogger(SpeculationQueue.class.getName());
+
+    private SpeculationQueue() { }
+
+    private static String holder(Run<?, ?> build) {
+        return String.format("%s#%d", build.getParent().getFullName(), build.getNumber());
+    }
+
+    /**
+     * Queue the build as the next candidate for the key. Blocks while the
+     * given number of candidates are in flight, then until every candidate
+     * ahead integrated or gave up.
+     *
+     * @param depth The number of candidates allowed in flight at once
+     * @return The SHA1 of the candidate to integrate on, null to integrate on
+     * the tip of the remote
+     * @throws InterruptedException If the build was aborted while waiting
+     */
+    public static String join(AbstractBuild<?, ?> build, String key, int depth, TaskListener listener) throws InterruptedException {
+        synchronized (queues) {
+            Candidate candidate = candidates.get(holder(build));
+            if (candidate != null) {
+                return candidate.base;
+            }
+            List<Candidate> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayList<Candidate>();
+                queues.put(key, queue);
+            }
+            if (queue.size() >= depth) {
+                listener.getLogger().println(String.format("%sWaiting for one of %d speculative candidate(s) in flight to finish", GitBridge.LOG_PREFIX, queue.size()));
+                while (queue.size() >= depth) {
+                    queues.wait();
+                }
+            }
+
+            List<Candidate> ahead = new ArrayList<Candidate>(queue);
+            candidate = new Candidate(key);
+            queue.add(candidate);
+            candidates.put(holder(build), candidate);
+            while (!isIntegrated(ahead)) {
+                queues.wait();
+            }
+
+            Candidate last = null;
+            for (Candidate c : ahead) {
+                if (c.sha != null && c.state != State.DROPPED) {
+                    last = c;
+                }
+            }
+            if (last != null) {
+                candidate.base = last.sha;
+                candidate.includes.addAll(last.includes);
+                candidate.includes.add(last);
+            }
+            logger.fine(String.format("%s joined %s on %s", holder(build), key, candidate.base));
+            return candidate.base;
+        }
+    }
+
+    private static boolean isIntegrated(List<Candidate> candidates) {
+        for (Candidate c : candidates) {
+            if (c.sha == null && c.state == State.INTEGRATING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the build is a candidate in the queue
+     */
+    public static boolean isQueued(Run<?, ?> build) {
+        synchronized (queues) {
+            return candidates.containsKey(holder(build));
+        }
+    }
+
+    /**
+     * Publish the integration the build made, for the builds behind it to
+     * integrate on.
+     */
+    public static void integrated(Run<?, ?> build, String sha) {
+        synchronized (queues) {
+            Candidate candidate = candidates.get(holder(build));
+            if (candidate != null) {
+                candidate.sha = sha;
+                queues.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Block until every candidate ahead of the build pushed or was dropped.
+     * Does not wait if the build is not queued.
+     *
+     * @return false if the candidate holds a candidate that was dropped, and
+     * must not be pushed
+     * @throws InterruptedException If the build was aborted while waiting
+     */
+    public static boolean awaitTurn(Run<?, ?> build, TaskListener listener) throws InterruptedException {
+        synchronized (queues) {
+            Candidate candidate = candidates.get(holder(build));
+            if (candidate == null) {
+                return true;
+            }
+            List<Candidate> queue = queues.get(candidate.key);
+            int ahead = queue.indexOf(candidate);
+            if (ahead > 0) {
+                listener.getLogger().println(String.format("%sWaiting for %d speculative candidate(s) ahead to be pushed", GitBridge.LOG_PREFIX, ahead));
+                while (queue.indexOf(candidate) > 0) {
+                    queues.wait();
+                }
+            }
+            for (Candidate included : candidate.includes) {
+                if (included.state != State.PUSHED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The build pushed its candidate, the next one in the queue may push.
+     */
+    public static void pushed(Run<?, ?> build) {
+        finish(build, State.PUSHED);
+    }
+
+    /**
+     * The candidate of the build failed or was not pushed, the candidates
+     * built on it are dropped when their turn comes.
+     */
+    public static void dropped(Run<?, ?> build) {
+        finish(build, State.DROPPED);
+    }
+
+    /**
+     * Take the build out of the queue when it completes or is deleted, as
+     * dropped unless it pushed.
+     */
+    public static void leave(Run<?, ?> build) {
+        synchronized (queues) {
+            finish(build, State.DROPPED);
+            candidates.remove(holder(build));
+        }
+    }
+
+    private static void finish(Run<?, ?> build, State state) {
+        synchronized (queues) {
+            Candidate candidate = candidates.get(holder(build));
+            if (candidate == null || candidate.state != State.INTEGRATING) {
+                return;
+            }
+            candidate.state = state;
+            queues.get(candidate.key).remove(candidate);
+            queues.notifyAll();
+            logger.fine(String.format("%s %s", holder(build), state));
+        }
+    }
+
+    private static final class Candidate {
+
+        final String key;
+        /** The candidates this one was built on, in queue order */
+        final List<Candidate> includes = new ArrayList<Candidate>();
+        String base;
+        String sha;
+        State state = State.INTEGRATING;
+
+        Candidate(String key) {
+            this.key = key;
+        }
+    }
+}
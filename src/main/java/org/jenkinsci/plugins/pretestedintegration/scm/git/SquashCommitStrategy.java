@@ -11,13 +11,9 @@ import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.plugins.git.Branch;
-import hudson.plugins.git.util.BuildData;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.jenkinsci.plugins.gitclient.Git;
-import org.jenkinsci.plugins.gitclient.GitClient;
 import org.jenkinsci.plugins.pretestedintegration.AbstractSCMBridge;
 import org.jenkinsci.plugins.pretestedintegration.Commit;
 import org.jenkinsci.plugins.pretestedintegration.exceptions.IntegationFailedExeception;
@@ -40,81 +36,92 @@ public class SquashCommitStrategy extends IntegrationStrategy {
 
     @Override
     public void integrate(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener, AbstractSCMBridge bridge, Commit<?> commit) throws IntegationFailedExeception, NothingToDoException {
-        int exitCode = -999;
-        int exitCodeCommit = -999;
-        GitBridge gitbridge = (GitBridge)bridge;
+        long start = System.currentTimeMillis();
+        try {
+            int exitCode = -999;
+            int exitCodeCommit = -999;
+            GitBridge gitbridge = (GitBridge)bridge;
+            if(gitbridge.applyAgentOutcome(build, listener)) {
+                gitbridge.checkoutIntegration(build, launcher, listener);
+                return;
+            }
         
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        BuildData gitBuildData = build.getAction(BuildData.class);
-        Branch gitDataBranch = gitBuildData.lastBuild.revision.getBranches().iterator().next();
+            GitOutput out = new GitOutput(listener.getLogger());
+            IntegrationSession session = IntegrationSession.of(build);
+            gitbridge.checkAlreadyIntegrated(build, launcher, listener, session.getReadySha());
         
-        String integrationSHA = "Not specified";
-        try {
-            integrationSHA = (String)build.getAction(PretestedIntegrationAction.class).getCurrentIntegrationTip().getId();
-        } catch (Exception ex) {
+            String integrationSHA = "Not specified";
+            try {
+                integrationSHA = (String)build.getAction(PretestedIntegrationAction.class).getCurrentIntegrationTip().getId();
+            } catch (Exception ex) {
             
-        }
-        listener.getLogger().println( String.format( "Preparing to merge changes in commit %s to integration branch %s(%s)", gitDataBranch.getSHA1String(), bridge.getBranch(), integrationSHA) );        
-        boolean found = false;
-        try {
-            GitClient client = Git.with(listener, build.getEnvironment(listener)).in(build.getWorkspace()).getClient();
-            for(Branch b : client.getRemoteBranches()) {
-                if(b.getName().equals(gitDataBranch.getName())) {
-                    found = true;
-                    break;
-                }
             }
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, "GitClient error", ex);
-            throw new IntegationFailedExeception("Unspecified GitClient error",ex);
-        }
-        
-        if(!found) {
+            listener.getLogger().println( String.format( "Preparing to merge changes in commit %s to integration branch %s(%s)", session.getReadySha(), bridge.getBranch(), integrationSHA) );
+            Branch gitDataBranch = session.getReadyBranch();
+            boolean found = false;
             try {
-                build.setDescription(String.format("Noting to do"));
-            } catch (IOException ex) { 
-                logger.log(Level.FINE, "Failed to update description", ex);  
-            }                
-            throw new NothingToDoException();
-        }
+                RefIndex refs = RefIndex.of(build, gitbridge.backend(build, launcher, listener));
+                found = refs.getRemoteBranch(gitDataBranch.getName()) != null;
+            } catch (Exception ex) {
+                logger.log(Level.SEVERE, "GitClient error", ex);
+                throw new IntegationFailedExeception("Unspecified GitClient error",ex);
+            }
         
-        try {
+            if(!found) {
+                try {
+                    build.setDescription(String.format("Noting to do"));
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Failed to update description", ex);
+                }
+                throw new NothingToDoException();
+            }
+
+            gitbridge.checkForConflicts(build, launcher, listener, gitDataBranch.getName());
+
+            try {
             
-            exitCode = gitbridge.git(build, launcher, listener, out, "merge", "--squash", gitDataBranch.getName());
-            exitCodeCommit = gitbridge.git(build, launcher, listener, out, "commit", "-m", String.format("Integrated %s", gitDataBranch.getName()));
-        
-        } catch (Exception ex) { /*Handled below */ }
+                GitBackend backend = gitbridge.backend(build, launcher, listener);
+                exitCode = backend.mergeSquash(gitDataBranch.getName(), out);
+                exitCodeCommit = backend.commit(String.format("Integrated %s", gitDataBranch.getName()), out);
+
+            } catch (Exception ex) { /*Handled below */ }
         
-        if (exitCode != 0) {
-            listener.getLogger().println("Failed to merge changes. Error message below");
-            listener.getLogger().println(out.toString());
-            try {                
-                build.setDescription(String.format("Merge conflict"));
-            } catch (IOException ex) {
-                logger.log(Level.FINE, "Failed to update description", ex);
+            if (exitCode != 0) {
+                listener.getLogger().println("Failed to merge changes. Conflicting files below");
+                for(String path : out.getConflicts()) {
+                    listener.getLogger().println(path);
+                }
+                try {
+                    build.setDescription(String.format("Merge conflict"));
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Failed to update description", ex);
+                }
+                throw new IntegationFailedExeception();
             }
-            throw new IntegationFailedExeception();
-        }
         
-        if (exitCodeCommit != 0 && exitCodeCommit != -999 ) {
-            listener.getLogger().println("Failed to commit merged changes. Error message below");
-            listener.getLogger().println(out.toString());
-            
-            try {
-                if(out.toString().contains("nothing to commit")) {
-                    build.setDescription(String.format("Nothing to do"));
-                } else {
-                    build.setDescription(String.format("Failed to commit merges"));
+            if (exitCodeCommit != 0 && exitCodeCommit != -999 ) {
+                listener.getLogger().println("Failed to commit merged changes");
+
+                boolean nothingToCommit = out.isNothingToCommit();
+                try {
+                    if(nothingToCommit) {
+                        build.setDescription(String.format("Nothing to do"));
+                    } else {
+                        build.setDescription(String.format("Failed to commit merges"));
+                    }
+                } catch (IOException ex ) {
+                    logger.log(Level.FINE, "Failed to update description", ex);
                 }
-            } catch (IOException ex ) {
-                logger.log(Level.FINE, "Failed to update description", ex);
-            }
-            
-            if(out.toString().contains("nothing to commit")) {
-                throw new NothingToDoException();
+
+                if(nothingToCommit) {
+                    throw new NothingToDoException();
+                }
+
+                throw new IntegationFailedExeception("Could commit merges. Git output: " + out.toString());
             }
-            
-            throw new IntegationFailedExeception("Could commit merges. Git output: " + out.toString());
+            gitbridge.checkoutIntegration(build, launcher, listener);
+        } finally {
+            IntegrationTimings.record(build, "integrate", start);
         }
     }
 
@@ -0,0 +1,145 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.errors.CheckoutConflictException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * Squashes a revision onto the checked out branch by writing the commit
+ * object directly. The merged tree is computed in memory, a single commit is
+ * created on top of the branch tip and the branch ref is moved. Only the
+ * files that differ between the old and the new tip are written to the
+ * working tree. When the revision is recorded as a parent as well, the result
+ * is the commit a --no-ff merge would have made, recorded even when the
+ * merged tree equals the tip's, unless the revision already is an ancestor of
+ * the tip.
+ */
+public class SquashMerge implements RepositoryCallback<SquashMerge.Result> {
+
+    public enum Status { COMMITTED, NOTHING_TO_DO, CONFLICT }
+
+    private final String revision;
+    private final String message;
+    private final boolean recordParent;
+
+    public SquashMerge(String revision, String message) {
+        this(revision, message, false);
+    }
+
+    public SquashMerge(String revision, String message, boolean recordParent) {
+        this.revision = revision;
+        this.message = message;
+        this.recordParent = recordParent;
+    }
+
+    public Result invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+        Ref head = repo.getRef(Constants.HEAD);
+        if (head == null || !head.isSymbolic()) {
+            throw new IOException("HEAD is not on a branch");
+        }
+
+        RevWalk walk = new RevWalk(repo);
+        try {
+            RevCommit tip = walk.parseCommit(head.getObjectId());
+            RevCommit other = walk.parseCommit(JGitBackend.resolve(repo, revision));
+            if (recordParent && walk.isMergedInto(other, tip)) {
+                return new Result(Status.NOTHING_TO_DO, null, new ArrayList<String>());
+            }
+            walk.reset();
+
+            ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(repo, true);
+            if (!merger.merge(tip, other)) {
+                List<String> conflicts = new ArrayList<String>();
+                if (merger.getUnmergedPaths() != null) {
+                    conflicts.addAll(merger.getUnmergedPaths());
+                }
+                return new Result(Status.CONFLICT, null, conflicts);
+            }
+
+            ObjectId tree = merger.getResultTreeId();
+            if (!recordParent && tree.equals(tip.getTree())) {
+                return new Result(Status.NOTHING_TO_DO, null, new ArrayList<String>());
+            }
+
+            CommitBuilder commit = new CommitBuilder();
+            PersonIdent ident = new PersonIdent(repo);
+            commit.setTreeId(tree);
+            if (recordParent) {
+                commit.setParentIds(tip, other);
+            } else {
+                commit.setParentId(tip);
+            }
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage(message);
+
+            ObjectId id;
+            ObjectInserter inserter = repo.newObjectInserter();
+            try {
+                id = inserter.insert(commit);
+                inserter.flush();
+            } finally {
+                inserter.release();
+            }
+
+            DirCacheCheckout checkout = new DirCacheCheckout(repo, tip.getTree(), repo.lockDirCache(), tree);
+            checkout.setFailOnConflict(true);
+            try {
+                checkout.checkout();
+            } catch (CheckoutConflictException ex) {
+                return new Result(Status.CONFLICT, null, new ArrayList<String>(checkout.getConflicts()));
+            }
+
+            RefUpdate update = repo.updateRef(head.getTarget().getName());
+            update.setNewObjectId(id);
+            update.setExpectedOldObjectId(tip);
+            update.setRefLogMessage((recordParent ? "merge: " : "commit (squash): ") + message, false);
+            RefUpdate.Result updated = update.update(walk);
+            if (updated != RefUpdate.Result.FAST_FORWARD && updated != RefUpdate.Result.NEW) {
+                throw new IOException(String.format("Failed to move %s to %s: %s", head.getTarget().getName(), id.name(), updated));
+            }
+            return new Result(Status.COMMITTED, id.name(), new ArrayList<String>());
+        } finally {
+            walk.release();
+        }
+    }
+
+    /**
+     * Outcome of the squash, carried back from the node.
+     */
+    public static final class Result implements Serializable {
+
+        public final Status status;
+        public final String sha1;
+        public final List<String> conflicts;
+
+        Result(Status status, String sha1, List<String> conflicts) {
+            this.status = status;
+            this.sha1 = sha1;
+            this.conflicts = conflicts;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,213 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.model.AbstractBuild;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+
+/**
+ * The paths each pending ready branch changes since it forked from the
+ * integration branch, and how many of them the integration branch changed
+ * too, cached per workspace. An entry is computed again only when its branch
+ * was pushed to or the integration tip moved, so keeping the index current
+ * costs one tree diff per changed branch.
+ * <p>
+ * {@link #order} uses the index to put the branches least likely to conflict
+ * first, so branches touching the same paths are not integrated back to back
+ * and a predicted conflict fails, and is rerun, as late as possible. Only the
+ * merge train integrates several branches and uses the order; with the other
+ * strategies the index only gives the directories of the sparse cone.
+ */
+public final class TouchedPathsIndex {
+
+    static final int MAX_PATHS = 10000;
+
+    private static final ConcurrentMap<String, Map<String, Entry>> cache = new ConcurrentHashMap<String, Map<String, Entry>>();
+
+    private TouchedPathsIndex() { }
+
+    private static String key(AbstractBuild<?, ?> build) {
+        return String.format("%s:%s", build.getBuiltOnStr(), WorktreePool.workspace(build).getRemote());
+    }
+
+    /**
+     * Order the pending branches so that each overlaps as little as possible
+     * with the integration tip and with the branches ahead of it. The first
+     * branch stays first, and ties keep the given order.
+     *
+     * @param tip The SHA1 of the integration tip
+     * @param pending Name to SHA1 of the pending branches
+     * @param first The branch to keep first, may be null
+     * @return The pending branches in integration order
+     */
+    public static LinkedHashMap<String, String> order(AbstractBuild<?, ?> build, GitBackend backend, String tip, Map<String, String> pending, String first) throws IOException, InterruptedException {
+        return order(entries(build, backend, tip, pending), pending, first);
+    }
+
+    /**
+     * @param entries Name to entry for every pending branch
+     */
+    static LinkedHashMap<String, String> order(Map<String, Entry> entries, Map<String, String> pending, String first) {
+        List<String> remaining = new ArrayList<String>(pending.keySet());
+        LinkedHashMap<String, String> ordered = new LinkedHashMap<String, String>();
+        Set<String> ahead = new HashSet<String>();
+        if (first != null && remaining.remove(first)) {
+            ordered.put(first, pending.get(first));
+            ahead.addAll(entries.get(first).paths);
+        }
+        while (!remaining.isEmpty()) {
+            String best = null;
+            int bestTip = 0;
+            int bestOverlap = 0;
+            for (String name : remaining) {
+                Entry entry = entries.get(name);
+                int overlap = 0;
+                for (String path : entry.paths) {
+                    if (ahead.contains(path)) {
+                        overlap++;
+                    }
+                }
+                if (best == null || entry.tipOverlap < bestTip || (entry.tipOverlap == bestTip && overlap < bestOverlap)) {
+                    best = name;
+                    bestTip = entry.tipOverlap;
+                    bestOverlap = overlap;
+                }
+            }
+            remaining.remove(best);
+            ordered.put(best, pending.get(best));
+            ahead.addAll(entries.get(best).paths);
+        }
+        return ordered;
+    }
+
+    /**
+     * @param tip The SHA1 of the integration tip
+     * @return The paths the branch changes since its merge base with the tip
+     */
+    public static Set<String> touched(AbstractBuild<?, ?> build, GitBackend backend, String tip, String name, String sha1) throws IOException, InterruptedException {
+        Map<String, String> branch = new HashMap<String, String>();
+        branch.put(name, sha1);
+        return entries(build, backend, tip, branch).get(name).paths;
+    }
+
+    /**
+     * @return Name to entry for every pending branch, computing the ones that
+     * are missing or stale
+     */
+    private static Map<String, Entry> entries(AbstractBuild<?, ?> build, GitBackend backend, String tip, Map<String, String> pending) throws IOException, InterruptedException {
+        String key = key(build);
+        Map<String, Entry> known = cache.get(key);
+        if (known == null) {
+            known = new HashMap<String, Entry>();
+        }
+
+        HashMap<String, String> stale = new HashMap<String, String>();
+        for (Map.Entry<String, String> branch : pending.entrySet()) {
+            Entry entry = known.get(branch.getKey());
+            if (entry == null || !entry.sha1.equals(branch.getValue()) || !entry.tip.equals(tip)) {
+                stale.put(branch.getKey(), branch.getValue());
+            }
+        }
+
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (Map.Entry<String, Entry> entry : known.entrySet()) {
+            if (entry.getValue().tip.equals(tip) && !stale.containsKey(entry.getKey())) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!stale.isEmpty()) {
+            long start = System.currentTimeMillis();
+            entries.putAll(backend.client().withRepository(new TouchedPaths(tip, stale)));
+            IntegrationTimings.record(build, "touchedPaths", start);
+        }
+        cache.put(key, entries);
+        return entries;
+    }
+
+    /**
+     * The paths a branch changes since its merge base with the tip.
+     */
+    static final class Entry implements Serializable {
+
+        final String sha1;
+        final String tip;
+        final Set<String> paths;
+        /** The number of the paths the tip changed since the merge base */
+        final int tipOverlap;
+
+        Entry(String sha1, String tip, Set<String> paths, int tipOverlap) {
+            this.sha1 = sha1;
+            this.tip = tip;
+            this.paths = paths;
+            this.tipOverlap = tipOverlap;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class TouchedPaths implements RepositoryCallback<HashMap<String, Entry>> {
+
+        private final String tip;
+        private final HashMap<String, String> branches;
+
+        TouchedPaths(String tip, HashMap<String, String> branches) {
+            this.tip = tip;
+            this.branches = branches;
+        }
+
+        public HashMap<String, Entry> invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            HashMap<String, Entry> entries = new HashMap<String, Entry>();
+            ObjectId tipId = JGitBackend.resolve(repo, tip);
+            for (Map.Entry<String, String> branch : branches.entrySet()) {
+                RevWalk walk = new RevWalk(repo);
+                try {
+                    RevCommit tipCommit = walk.parseCommit(tipId);
+                    RevCommit commit = walk.parseCommit(ObjectId.fromString(branch.getValue()));
+                    walk.setRevFilter(RevFilter.MERGE_BASE);
+                    walk.markStart(tipCommit);
+                    walk.markStart(commit);
+                    RevCommit base = walk.next();
+
+                    Set<String> paths = new TreeSet<String>();
+                    int tipOverlap = 0;
+                    if (base != null) {
+                        base = walk.parseCommit(base);
+                        paths.addAll(Replay.changedPaths(repo, base.getTree(), commit.getTree()));
+                        for (String path : Replay.changedPaths(repo, base.getTree(), tipCommit.getTree())) {
+                            if (paths.contains(path)) {
+                                tipOverlap++;
+                            }
+                        }
+                    }
+                    if (paths.size() > MAX_PATHS) {
+                        paths = new TreeSet<String>(new ArrayList<String>(paths).subList(0, MAX_PATHS));
+                    }
+                    entries.put(branch.getKey(), new Entry(branch.getValue(), tip, paths, tipOverlap));
+                } finally {
+                    walk.release();
+                }
+            }
+            return entries;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
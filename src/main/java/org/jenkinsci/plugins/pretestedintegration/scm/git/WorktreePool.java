@@ -0,0 +1,472 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Integration worktrees pooled per node and repository. All worktrees of a
+ * repository borrow their objects from one shared bare store through git
+ * alternates, so a worktree costs little more than its checked out files. A
+ * build leases a worktree while integrating, which is reset to the tip of the
+ * integration branch, and gives it back on commit or rollback. Idle worktrees
+ * are evicted least recently used first once the pool exceeds its disk
+ * budget.
+ * <p>
+ * The build steps run in the workspace of the job, so the integration is
+ * checked out there before the build, and is only pushed if the workspace
+ * still has it checked out. The repository of the workspace is made to borrow
+ * objects from the store as well, and drops its own copies of them, so the
+ * job's clone and the pool keep the objects they share once. The store is
+ * never garbage collected, as the repositories borrowing from it may need
+ * any of its objects. The store only fetches the branches the build needs,
+ * and sizes are measured at most every {@link #MEASURE_INTERVAL}.
+ */
+public final class WorktreePool {
+
+    static final String ROOT = "pretested-integration";
+    static final String STORE = "store.git";
+    static final String WORKTREE = "wt";
+    static final String INTEGRATION_REF = "refs/pretested/integration";
+    /** Where the store keeps the speculative candidate of each worktree */
+    static final String CANDIDATES = "refs/pretested/candidates/";
+    static final long MEASURE_INTERVAL = 60 * 60 * 1000;
+    static final long PRUNE_INTERVAL = 60 * 60 * 1000;
+
+    private static final Map<String, Pool> pools = new HashMap<String, Pool>();
+    private static final ConcurrentMap<String, Worktree> leases = new ConcurrentHashMap<String, Worktree>();
+    private static final Logger logger = Logger.getLogger(WorktreePool.class.getName());
+
+    private WorktreePool() { }
+
+    private static String holder(Run<?, ?> build) {
+        return String.format("%s#%d", build.getParent().getFullName(), build.getNumber());
+    }
+
+    /**
+     * @return The worktree leased by the build, or the workspace of the build
+     * if it has none
+     */
+    public static FilePath workspace(AbstractBuild<?, ?> build) {
+        Worktree leased = leases.get(holder(build));
+        return leased == null ? build.getWorkspace() : leased.path;
+    }
+
+    /**
+     * Lease a worktree of the repository on the node of the build, with the
+     * branch checked out at the tip fetched from the remote. Does nothing if
+     * the build already holds a worktree.
+     *
+     * @param ready The names on the remote of the ready branches to fetch
+     * besides the integration branch, null to fetch all branches
+     * @param budget The disk budget of the pool, in megabytes
+     * @param sparse true to fetch into the store without blobs, and check out
+     * only the top level files until the cone is set
+     * @return The leased worktree
+     */
+    public static FilePath lease(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String gitExe, String url, String branch, List<String> ready, long budget, boolean sparse) throws IOException, InterruptedException {
+        Worktree leased = leases.get(holder(build));
+        if (leased != null) {
+            return leased.path;
+        }
+
+        FilePath root = build.getBuiltOn().getRootPath().child(ROOT).child(Util.getDigestOf(url).substring(0, 12));
+        Pool pool;
+        synchronized (pools) {
+            String key = String.format("%s:%s", build.getBuiltOnStr(), root.getRemote());
+            pool = pools.get(key);
+            if (pool == null) {
+                pool = new Pool(root);
+                pools.put(key, pool);
+            }
+        }
+
+        Worktree worktree;
+        synchronized (pool) {
+            pool.budget = budget * 1024 * 1024;
+            pool.update(launcher, listener, gitExe, url, branch, ready, sparse);
+            worktree = pool.take(launcher, listener, gitExe, url);
+        }
+
+        try {
+            if (sparse) {
+                promisor(launcher, listener, gitExe, worktree.path);
+                git(launcher, listener, gitExe, worktree.path, "sparse-checkout", "init", "--cone");
+            }
+            git(launcher, listener, gitExe, worktree.path, "fetch", "--prune", pool.store.getRemote(), "+refs/remotes/origin/*:refs/remotes/origin/*");
+            git(launcher, listener, gitExe, worktree.path, "checkout", "-f", "-B", branch, "refs/remotes/origin/" + branch);
+            git(launcher, listener, gitExe, worktree.path, "clean", "-fdx");
+        } catch (IOException ex) {
+            pool.discard(worktree);
+            throw ex;
+        }
+        leases.put(holder(build), worktree);
+        build.addAction(new PooledWorktreeAction(worktree.path.getRemote()));
+        return worktree.path;
+    }
+
+    /**
+     * @return The shared store of the worktree leased by the build, null if
+     * it has none
+     */
+    public static FilePath store(Run<?, ?> build) {
+        Worktree leased = leases.get(holder(build));
+        return leased == null ? null : leased.pool.store;
+    }
+
+    /**
+     * Check out the integration made in the worktree leased by the build in
+     * the workspace of the build, where the build steps run. The integration
+     * is fetched to its own ref rather than FETCH_HEAD, which a prefetch into
+     * the workspace may write meanwhile, so only the objects the worktree made
+     * itself are copied. Does nothing if the build holds no worktree.
+     */
+    public static void checkoutInWorkspace(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String gitExe) throws IOException, InterruptedException {
+        Worktree leased = leases.get(holder(build));
+        if (leased == null) {
+            return;
+        }
+        borrowFromStore(launcher, listener, gitExe, build.getWorkspace(), leased.pool.store);
+        git(launcher, listener, gitExe, build.getWorkspace(), "fetch", "--no-tags", leased.path.getRemote(), "+HEAD:" + INTEGRATION_REF);
+        git(launcher, listener, gitExe, build.getWorkspace(), "checkout", "-f", "--detach", INTEGRATION_REF);
+    }
+
+    /**
+     * Push the integration made in the worktree leased by the build into the
+     * store, so the worktrees of the builds behind it in the
+     * {@link SpeculationQueue} can integrate on it. Each worktree has its own
+     * candidate ref, overwritten by its next candidate.
+     *
+     * @return The SHA1 of the integration, null if the build holds no worktree
+     */
+    public static String publish(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String gitExe) throws IOException, InterruptedException {
+        Worktree leased = leases.get(holder(build));
+        if (leased == null) {
+            return null;
+        }
+        git(launcher, listener, gitExe, leased.path, "push", "--no-verify", leased.pool.store.getRemote(), "+HEAD:" + CANDIDATES + leased.path.getName());
+        return git(launcher, listener, gitExe, leased.path, "rev-parse", "HEAD").trim();
+    }
+
+    /**
+     * @return true if the workspace of the build still has the integration
+     * made in its leased worktree checked out, that is if the build tested
+     * what would be pushed, or if the build holds no worktree
+     */
+    public static boolean isCheckedOutInWorkspace(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener, String gitExe) throws IOException, InterruptedException {
+        Worktree leased = leases.get(holder(build));
+        if (leased == null) {
+            return true;
+        }
+        String integrated = git(launcher, listener, gitExe, leased.path, "rev-parse", "HEAD").trim();
+        String tested = git(launcher, listener, gitExe, build.getWorkspace(), "rev-parse", "HEAD").trim();
+        return integrated.equals(tested);
+    }
+
+    /**
+     * Give the worktree leased by the build back to its pool, if any, and
+     * evict idle worktrees over the disk budget.
+     */
+    public static void release(Run<?, ?> build) {
+        Worktree worktree = leases.remove(holder(build));
+        if (worktree == null) {
+            return;
+        }
+        if (System.currentTimeMillis() - worktree.measured > MEASURE_INTERVAL) {
+            try {
+                worktree.size = worktree.path.act(new DiskUsage());
+                worktree.measured = System.currentTimeMillis();
+            } catch (Exception ex) {
+                logger.log(Level.FINE, "Failed to measure " + worktree.path, ex);
+            }
+        }
+        worktree.pool.giveBack(worktree);
+    }
+
+    /**
+     * Add the objects of the store to the alternates of the repository in the
+     * workspace, if missing, and repack it without the objects it can now
+     * borrow. Done once per workspace, as the alternates stay.
+     */
+    private static void borrowFromStore(Launcher launcher, TaskListener listener, String gitExe, FilePath workspace, FilePath store) throws IOException, InterruptedException {
+        if (!workspace.child(".git/objects").isDirectory()) {
+            return;
+        }
+        FilePath info = workspace.child(".git/objects/info");
+        String objects = store.child("objects").getRemote();
+        FilePath alternates = info.child("alternates");
+        String existing = alternates.exists() ? alternates.readToString() : "";
+        for (String line : existing.split("\\r?\\n")) {
+            if (line.trim().equals(objects)) {
+                return;
+            }
+        }
+        info.mkdirs();
+        if (!existing.isEmpty() && !existing.endsWith("\n")) {
+            existing += "\n";
+        }
+        alternates.write(existing + objects + "\n", "UTF-8");
+        git(launcher, listener, gitExe, workspace, "repack", "-a", "-d", "-l", "-q");
+        listener.getLogger().println(String.format("%sThe workspace %s now borrows the objects of %s", GitBridge.LOG_PREFIX, workspace.getRemote(), store.getRemote()));
+    }
+
+    /**
+     * Make the origin of the repository a promisor remote, so fetches from it
+     * leave out blobs and the missing ones are fetched on demand.
+     */
+    private static void promisor(Launcher launcher, TaskListener listener, String gitExe, FilePath dir) throws IOException, InterruptedException {
+        git(launcher, listener, gitExe, dir, "config", "remote.origin.promisor", "true");
+        git(launcher, listener, gitExe, dir, "config", "remote.origin.partialclonefilter", "blob:none");
+    }
+
+    /**
+     * Fetch blobs from the origin again, once sparse checkout is turned off.
+     * The origin stays a promisor remote for the blobs fetches left out.
+     */
+    private static void unsetFilter(Launcher launcher, TaskListener listener, String gitExe, FilePath dir) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder(gitExe, "config", "--get", "remote.origin.partialclonefilter");
+        if (launcher.launch().cmds(args).pwd(dir).stdout(new GitOutput()).join() == 0) {
+            git(launcher, listener, gitExe, dir, "config", "--unset", "remote.origin.partialclonefilter");
+        }
+    }
+
+    /**
+     * @return The output of the command
+     */
+    private static String git(Launcher launcher, TaskListener listener, String gitExe, FilePath dir, String... cmds) throws IOException, InterruptedException {
+        GitOutput out = new GitOutput();
+        ArgumentListBuilder args = new ArgumentListBuilder(gitExe);
+        args.add(cmds);
+        if (launcher.launch().cmds(args).pwd(dir).stdout(out).join() != 0) {
+            throw new IOException(String.format("git %s failed in %s:%n%s", cmds[0], dir.getRemote(), out.toString()));
+        }
+        return out.toString();
+    }
+
+    private static String refspec(String branch) {
+        return String.format("+refs/heads/%s:refs/remotes/origin/%s", branch, branch);
+    }
+
+    /**
+     * The shared store and the worktrees of one repository on one node.
+     */
+    private static final class Pool {
+
+        final FilePath root;
+        final FilePath store;
+        final List<Worktree> idle = new ArrayList<Worktree>();
+        final List<Worktree> leased = new ArrayList<Worktree>();
+        long budget;
+        long storeSize;
+        long measured;
+        long pruned;
+        boolean loaded;
+        /** false once the store is known to fetch with blobs */
+        boolean partial = true;
+
+        Pool(FilePath root) {
+            this.root = root;
+            this.store = root.child(STORE);
+        }
+
+        /**
+         * Create the store if missing, turn off its automatic garbage
+         * collection, pick up the worktrees left by an earlier controller
+         * session and fetch the integration and ready
+         * branches into the store. Branches deleted on the remote are pruned
+         * from the store at most every {@link #PRUNE_INTERVAL}.
+         */
+        void update(Launcher launcher, TaskListener listener, String gitExe, String url, String branch, List<String> ready, boolean sparse) throws IOException, InterruptedException {
+            if (!store.exists()) {
+                root.mkdirs();
+                git(launcher, listener, gitExe, root, "init", "--bare", STORE);
+                git(launcher, listener, gitExe, store, "remote", "add", "origin", url);
+            }
+            if (!loaded) {
+                git(launcher, listener, gitExe, store, "config", "gc.auto", "0");
+                for (FilePath dir : root.listDirectories()) {
+                    if (dir.getName().matches(WORKTREE + "\\d+")) {
+                        Worktree worktree = new Worktree(this, dir);
+                        worktree.size = dir.act(new DiskUsage());
+                        worktree.measured = System.currentTimeMillis();
+                        idle.add(worktree);
+                    }
+                }
+                loaded = true;
+            }
+            if (sparse) {
+                promisor(launcher, listener, gitExe, store);
+                partial = true;
+            } else if (partial) {
+                unsetFilter(launcher, listener, gitExe, store);
+                partial = false;
+            }
+            long now = System.currentTimeMillis();
+            if (ready == null) {
+                git(launcher, listener, gitExe, store, "fetch", "--prune", "origin", "+refs/heads/*:refs/remotes/origin/*");
+                pruned = now;
+            } else {
+                if (now - pruned > PRUNE_INTERVAL) {
+                    git(launcher, listener, gitExe, store, "remote", "prune", "origin");
+                    pruned = now;
+                }
+                List<String> fetch = new ArrayList<String>();
+                fetch.add("fetch");
+                fetch.add("origin");
+                fetch.add(refspec(branch));
+                for (String name : ready) {
+                    fetch.add(refspec(name));
+                }
+                git(launcher, listener, gitExe, store, fetch.toArray(new String[fetch.size()]));
+            }
+            if (now - measured > MEASURE_INTERVAL) {
+                storeSize = measureStore(launcher, listener, gitExe);
+                measured = now;
+            }
+        }
+
+        /**
+         * @return The bytes used by the objects of the store, as counted by
+         * git without walking the store
+         */
+        private long measureStore(Launcher launcher, TaskListener listener, String gitExe) throws IOException, InterruptedException {
+            long kib = 0;
+            for (String line : git(launcher, listener, gitExe, store, "count-objects", "-v").split("\\r?\\n")) {
+                if (line.startsWith("size:") || line.startsWith("size-pack:") || line.startsWith("size-garbage:")) {
+                    kib += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                }
+            }
+            return kib * 1024;
+        }
+
+        /**
+         * @return The most recently used idle worktree, warm with the files
+         * of the previous integration, or a new one
+         */
+        Worktree take(Launcher launcher, TaskListener listener, String gitExe, String url) throws IOException, InterruptedException {
+            Worktree worktree = null;
+            for (Worktree candidate : idle) {
+                if (worktree == null || candidate.lastUsed > worktree.lastUsed) {
+                    worktree = candidate;
+                }
+            }
+            if (worktree != null) {
+                idle.remove(worktree);
+            } else {
+                int n = 1;
+                while (root.child(WORKTREE + n).exists()) {
+                    n++;
+                }
+                FilePath path = root.child(WORKTREE + n);
+                git(launcher, listener, gitExe, root, "init", path.getName());
+                path.child(".git/objects/info/alternates").write(store.child("objects").getRemote() + "\n", "UTF-8");
+                git(launcher, listener, gitExe, path, "remote", "add", "origin", url);
+                worktree = new Worktree(this, path);
+            }
+            leased.add(worktree);
+            return worktree;
+        }
+
+        synchronized void giveBack(Worktree worktree) {
+            leased.remove(worktree);
+            worktree.lastUsed = System.currentTimeMillis();
+            idle.add(worktree);
+            evict();
+        }
+
+        synchronized void discard(Worktree worktree) {
+            leased.remove(worktree);
+            delete(worktree);
+        }
+
+        private void evict() {
+            long total = storeSize;
+            for (Worktree worktree : idle) {
+                total += worktree.size;
+            }
+            for (Worktree worktree : leased) {
+                total += worktree.size;
+            }
+            while (total > budget && !idle.isEmpty()) {
+                Worktree lru = idle.get(0);
+                for (Worktree candidate : idle) {
+                    if (candidate.lastUsed < lru.lastUsed) {
+                        lru = candidate;
+                    }
+                }
+                idle.remove(lru);
+                total -= lru.size;
+                delete(lru);
+            }
+            if (total > budget) {
+                logger.info(String.format("%s uses %d MB, over its budget of %d MB, with no idle worktrees to evict", root, total >> 20, budget >> 20));
+            }
+        }
+
+        private void delete(Worktree worktree) {
+            try {
+                worktree.path.deleteRecursive();
+                logger.fine(String.format("Evicted %s", worktree.path));
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Failed to delete " + worktree.path, ex);
+            }
+        }
+    }
+
+    private static final class Worktree {
+
+        final Pool pool;
+        final FilePath path;
+        long lastUsed;
+        long size;
+        long measured;
+
+        Worktree(Pool pool, FilePath path) {
+            this.pool = pool;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The bytes used by the files under a directory, not following links.
+     */
+    private static final class DiskUsage implements FilePath.FileCallable<Long> {
+
+        public Long invoke(File f, VirtualChannel channel) throws IOException {
+            return size(f);
+        }
+
+        private static long size(File f) throws IOException {
+            if (Util.isSymlink(f)) {
+                return 0;
+            }
+            File[] children = f.listFiles();
+            if (children == null) {
+                return f.length();
+            }
+            long size = 0;
+            for (File child : children) {
+                size += size(child);
+            }
+            return size;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
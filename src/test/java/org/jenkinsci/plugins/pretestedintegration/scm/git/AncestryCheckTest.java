@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AncestryCheckTest {
+
+    private static final long NOW = 1400000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git git;
+
+    @Before
+    public void setUp() throws Exception {
+        git = Git.init().setDirectory(folder.newFolder("workspace")).call();
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    /**
+     * Commit an empty change with the committer clock set the given number
+     * of seconds from now.
+     */
+    private RevCommit commitAt(String message, int seconds) throws Exception {
+        PersonIdent ident = new PersonIdent("Committer", "committer@example.com", new Date(NOW + seconds * 1000L), TimeZone.getTimeZone("UTC"));
+        return git.commit().setMessage(message).setAuthor(ident).setCommitter(ident).call();
+    }
+
+    @Test
+    public void findsTheCommitInTheHistoryOfTheTip() throws Exception {
+        RevCommit ready = commitAt("ready", 0);
+        commitAt("second", 60);
+        RevCommit tip = commitAt("third", 120);
+
+        assertTrue(new AncestryCheck(ready.name(), tip.name()).invoke(git.getRepository(), null));
+        assertTrue(new AncestryCheck(tip.name(), tip.name()).invoke(git.getRepository(), null));
+    }
+
+    @Test
+    public void doesNotFindACommitOnAnotherBranch() throws Exception {
+        RevCommit base = commitAt("base", 0);
+        RevCommit tip = commitAt("tip", 60);
+        git.checkout().setCreateBranch(true).setName("ready").setStartPoint(base).call();
+        RevCommit ready = commitAt("ready", 120);
+
+        assertFalse(new AncestryCheck(ready.name(), tip.name()).invoke(git.getRepository(), null));
+        assertFalse(new AncestryCheck(tip.name(), ready.name()).invoke(git.getRepository(), null));
+    }
+
+    @Test
+    public void toleratesCommitterClocksBehindTheCommit() throws Exception {
+        RevCommit ready = commitAt("ready", 0);
+        RevCommit tip = commitAt("skewed", -AncestryCheck.CLOCK_SKEW_SECONDS / 2);
+
+        assertTrue(new AncestryCheck(ready.name(), tip.name()).invoke(git.getRepository(), null));
+    }
+
+    @Test
+    public void stopsAtCommitsOlderThanTheSkewAllowance() throws Exception {
+        RevCommit ready = commitAt("ready", 0);
+        RevCommit tip = commitAt("skewed", -AncestryCheck.CLOCK_SKEW_SECONDS * 2);
+
+        assertFalse(new AncestryCheck(ready.name(), tip.name()).invoke(git.getRepository(), null));
+    }
+}
@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BranchDeletionQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsTheOutcomeOfEachDeletion() {
+        String output = "To /srv/origin.git\n"
+                + "-\t:refs/heads/ready/a\t[deleted]\n"
+                + "!\t:refs/heads/ready/b\t[remote rejected] (hook declined)\n"
+                + "Done\n";
+
+        List<String> failed = BranchDeletionQueue.failedDeletions(output, Arrays.asList("ready/a", "ready/b"));
+
+        assertEquals(Collections.singletonList("ready/b"), failed);
+    }
+
+    @Test
+    public void countsBranchesAlreadyGoneAsDeleted() {
+        String output = "error: unable to delete 'ready/c': remote ref does not exist\n"
+                + "To /srv/origin.git\n"
+                + "!\t:refs/heads/ready/d\t[remote rejected] (remote ref does not exist)\n"
+                + "Done\n";
+
+        List<String> failed = BranchDeletionQueue.failedDeletions(output, Arrays.asList("ready/c", "ready/d"));
+
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void failsEveryBranchWhenThePushFailed() {
+        String output = "fatal: Could not read from remote repository.\n";
+
+        List<String> failed = BranchDeletionQueue.failedDeletions(output, Arrays.asList("ready/a", "ready/b"));
+
+        assertEquals(Arrays.asList("ready/a", "ready/b"), failed);
+    }
+
+    @Test
+    public void deletesInProcessAndIgnoresBranchesAlreadyGone() throws Exception {
+        File origin = folder.newFolder("origin.git");
+        Git remote = Git.init().setBare(true).setDirectory(origin).call();
+        Git clone = Git.cloneRepository().setURI(origin.toURI().toString()).setDirectory(folder.newFolder("workspace")).call();
+        try {
+            TestRepositories.commit(clone, "file.txt", "base\n", "base");
+            clone.push().setRemote("origin").add("master").call();
+            clone.branchCreate().setName("ready/a").call();
+            clone.push().setRemote("origin").add("ready/a").call();
+
+            List<String> failed = new BranchDeletionQueue.DeleteBranches("origin", Arrays.asList("ready/a", "ready/gone")).invoke(clone.getRepository(), null);
+
+            assertTrue(failed.isEmpty());
+            assertNull(remote.getRepository().getRef("refs/heads/ready/a"));
+            assertNotNull(remote.getRepository().getRef("refs/heads/master"));
+        } finally {
+            clone.getRepository().close();
+            remote.getRepository().close();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class GitBridgeTest {
+
+    @Test
+    public void deleteRefspecQualifiesTheRemoteBranch() {
+        assertEquals(":refs/heads/ready/feature", GitBridge.deleteRefspec("origin/ready/feature"));
+    }
+
+    @Test
+    public void deleteRefspecKeepsNestedBranchNames() {
+        assertEquals(":refs/heads/ready/team/feature", GitBridge.deleteRefspec("origin/ready/team/feature"));
+    }
+}
@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class GitOutputTest {
+
+    private static void write(GitOutput out, String text) throws Exception {
+        byte[] bytes = text.getBytes("UTF-8");
+        out.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void picksUpConflictsAndNothingToCommit() throws Exception {
+        GitOutput out = new GitOutput();
+        write(out, "Auto-merging src/a.txt\n");
+        write(out, "CONFLICT (content): Merge conflict in src/a.txt\n");
+        write(out, "CONFLICT (modify/delete): src/b.txt deleted in HEAD and modified in ready. Version ready of src/b.txt left in tree.\n");
+        write(out, "nothing to commit, working tree clean");
+
+        assertEquals(Arrays.asList("src/a.txt", "src/b.txt"), out.getConflicts());
+        assertTrue(out.isNothingToCommit());
+    }
+
+    @Test
+    public void findsLinesSplitAcrossWrites() throws Exception {
+        GitOutput out = new GitOutput();
+        write(out, "CONFLICT (content): Merge con");
+        write(out, "flict in file.txt\nno");
+        write(out, "thing else\n");
+
+        assertEquals(Arrays.asList("file.txt"), out.getConflicts());
+        assertFalse(out.isNothingToCommit());
+    }
+
+    @Test
+    public void keepsOnlyTheTail() throws Exception {
+        GitOutput out = new GitOutput();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 99; i++) {
+            line.append('x');
+        }
+        line.append('\n');
+        for (int i = 0; i < GitOutput.TAIL_SIZE / 100 + 10; i++) {
+            write(out, line.toString());
+        }
+        write(out, "last line\n");
+
+        String tail = out.toString();
+        assertTrue(tail.startsWith("[... "));
+        assertTrue(tail.endsWith("last line\n"));
+        assertTrue(tail.length() < GitOutput.TAIL_SIZE + 100);
+        assertEquals((GitOutput.TAIL_SIZE / 100 + 10) * 100 + 10, out.size());
+    }
+
+    @Test
+    public void streamsToTheLog() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        GitOutput out = new GitOutput(new PrintStream(log, true, "UTF-8"));
+        write(out, "Updating 1234567..89abcde\n");
+        out.close();
+
+        assertEquals("Updating 1234567..89abcde\n", log.toString("UTF-8"));
+        assertEquals("Updating 1234567..89abcde\n", out.toString());
+    }
+}
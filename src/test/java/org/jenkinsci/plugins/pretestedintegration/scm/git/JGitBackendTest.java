@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JGitBackendTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git remote;
+    private Git clone;
+
+    @Before
+    public void setUp() throws Exception {
+        File origin = folder.newFolder("origin.git");
+        remote = Git.init().setBare(true).setDirectory(origin).call();
+        clone = Git.cloneRepository().setURI(origin.toURI().toString()).setDirectory(folder.newFolder("workspace")).call();
+        TestRepositories.commit(clone, "file.txt", "base\n", "base");
+        clone.push().setRemote("origin").add("master").call();
+        clone.branchCreate().setName("ready/feature").call();
+        clone.push().setRemote("origin").add("ready/feature").call();
+    }
+
+    @After
+    public void tearDown() {
+        remote.getRepository().close();
+        clone.getRepository().close();
+    }
+
+    @Test
+    public void deletesTheRemoteBranch() throws Exception {
+        String refspec = GitBridge.deleteRefspec("origin/ready/feature");
+        JGitBackend.Result result = new JGitBackend.Push("origin", refspec).invoke(clone.getRepository(), null);
+
+        assertEquals(result.output, 0, result.exitCode);
+        Repository origin = remote.getRepository();
+        assertNull(origin.getRef("refs/heads/ready/feature"));
+        assertNotNull(origin.getRef("refs/heads/master"));
+    }
+
+    @Test
+    public void pushesTheIntegrationBranch() throws Exception {
+        RevCommit integrated = TestRepositories.commit(clone, "file.txt", "integrated\n", "Integrated ready/feature");
+        JGitBackend.Result result = new JGitBackend.Push("origin", "master").invoke(clone.getRepository(), null);
+
+        assertEquals(result.output, 0, result.exitCode);
+        assertEquals(integrated.getId(), remote.getRepository().getRef("refs/heads/master").getObjectId());
+    }
+
+    @Test
+    public void failsWhenThePushIsRejected() throws Exception {
+        Git other = Git.cloneRepository().setURI(remote.getRepository().getDirectory().toURI().toString()).setDirectory(folder.newFolder("other")).call();
+        try {
+            TestRepositories.commit(other, "other.txt", "other\n", "other");
+            other.push().setRemote("origin").add("master").call();
+        } finally {
+            other.getRepository().close();
+        }
+        TestRepositories.commit(clone, "file.txt", "integrated\n", "Integrated ready/feature");
+
+        JGitBackend.Result result = new JGitBackend.Push("origin", "master").invoke(clone.getRepository(), null);
+
+        assertEquals(1, result.exitCode);
+    }
+}
@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MergeCheckTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git git;
+
+    @Before
+    public void setUp() throws Exception {
+        git = Git.init().setDirectory(folder.newFolder("workspace")).call();
+        TestRepositories.commit(git, "file.txt", "base\n", "base");
+        git.branchCreate().setName("ready").call();
+        git.checkout().setName("ready").call();
+        TestRepositories.commit(git, "file.txt", "ready\n", "ready");
+        git.checkout().setName("master").call();
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    @Test
+    public void findsNoConflictsWhenTheRevisionsMergeCleanly() throws Exception {
+        TestRepositories.commit(git, "other.txt", "master\n", "master");
+
+        List<String> conflicts = new MergeCheck("master", "ready").invoke(git.getRepository(), null);
+
+        assertTrue(conflicts.isEmpty());
+    }
+
+    @Test
+    public void reportsTheConflictingPathsWithoutTouchingTheWorkspace() throws Exception {
+        Repository repo = git.getRepository();
+        RevCommit tip = TestRepositories.commit(git, "file.txt", "master\n", "master");
+
+        List<String> conflicts = new MergeCheck("master", "ready").invoke(repo, null);
+
+        assertEquals(1, conflicts.size());
+        assertEquals("file.txt", conflicts.get(0));
+        ObjectId head = repo.resolve(Constants.HEAD);
+        assertEquals(tip.getId(), head);
+        assertEquals("master\n", TestRepositories.read(git, "file.txt"));
+        assertFalse(TestRepositories.hasUnmerged(repo.readDirCache()));
+        assertTrue(git.status().call().isClean());
+    }
+}
@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Result;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergeTrainStrategyTest {
+
+    private final MergeTrainStrategy strategy = new MergeTrainStrategy(3);
+    private GitBridge gitbridge;
+    private BuildListener listener;
+    private Map<String, String> pending;
+
+    @Before
+    public void setUp() {
+        gitbridge = mock(GitBridge.class);
+        doReturn(true).when(gitbridge).meetsRequiredResult(Result.SUCCESS);
+        doReturn(false).when(gitbridge).meetsRequiredResult(Result.FAILURE);
+        listener = mock(BuildListener.class);
+        doReturn(new PrintStream(new ByteArrayOutputStream())).when(listener).getLogger();
+
+        pending = new LinkedHashMap<String, String>();
+        pending.put("origin/ready/a", "a1");
+        pending.put("origin/ready/b", "b1");
+        pending.put("origin/ready/c", "c1");
+        pending.put("origin/ready/d", "d1");
+        pending.put("origin/ready/e", "e1");
+    }
+
+    @SuppressWarnings("rawtypes")
+    private AbstractBuild build(AbstractBuild previous, Result result, MergeTrainAction train) {
+        AbstractBuild build = mock(AbstractBuild.class);
+        doReturn(previous).when(build).getPreviousBuild();
+        doReturn(result).when(build).getResult();
+        doReturn(train).when(build).getAction(MergeTrainAction.class);
+        return build;
+    }
+
+    private static MergeTrainAction train(String... branches) {
+        return new MergeTrainAction(Arrays.asList(branches), Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void takesUpToBatchSizeBranches() {
+        List<String> next = strategy.nextTrain(build(null, null, null), gitbridge, listener, pending, new HashMap<String, String>());
+
+        assertEquals(Arrays.asList("origin/ready/a", "origin/ready/b", "origin/ready/c"), next);
+    }
+
+    @Test
+    public void bisectsAFailedTrain() {
+        MergeTrainAction failed = train("origin/ready/a", "origin/ready/b", "origin/ready/c", "origin/ready/d");
+        AbstractBuild<?, ?> build = build(build(null, Result.FAILURE, failed), null, null);
+
+        List<String> next = strategy.nextTrain(build, gitbridge, listener, pending, new HashMap<String, String>());
+
+        assertEquals(Arrays.asList("origin/ready/a", "origin/ready/b"), next);
+    }
+
+    @Test
+    public void looksPastBuildsWithoutATrain() {
+        MergeTrainAction failed = train("origin/ready/a", "origin/ready/b");
+        AbstractBuild<?, ?> build = build(build(build(null, Result.FAILURE, failed), Result.FAILURE, null), null, null);
+
+        List<String> next = strategy.nextTrain(build, gitbridge, listener, pending, new HashMap<String, String>());
+
+        assertEquals(Arrays.asList("origin/ready/a"), next);
+    }
+
+    @Test
+    public void leavesOutTheBranchThatFailedOnItsOwn() {
+        AbstractBuild<?, ?> build = build(build(null, Result.FAILURE, train("origin/ready/a")), null, null);
+        Map<String, String> rejected = new HashMap<String, String>();
+
+        List<String> next = strategy.nextTrain(build, gitbridge, listener, pending, rejected);
+
+        assertEquals(Arrays.asList("origin/ready/b", "origin/ready/c", "origin/ready/d"), next);
+        assertEquals("a1", rejected.get("origin/ready/a"));
+    }
+
+    @Test
+    public void takesARejectedBranchAgainOnceItIsUpdated() {
+        Map<String, String> rejected = new HashMap<String, String>();
+        rejected.put("origin/ready/a", "a0");
+        MergeTrainAction passed = new MergeTrainAction(Arrays.asList("origin/ready/b"), rejected);
+        AbstractBuild<?, ?> build = build(build(null, Result.SUCCESS, passed), null, null);
+        Map<String, String> next = new HashMap<String, String>();
+
+        List<String> train = strategy.nextTrain(build, gitbridge, listener, pending, next);
+
+        assertEquals(Arrays.asList("origin/ready/a", "origin/ready/b", "origin/ready/c"), train);
+        assertTrue(next.isEmpty());
+    }
+}
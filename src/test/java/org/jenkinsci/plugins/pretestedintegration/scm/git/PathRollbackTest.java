@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PathRollbackTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git git;
+    private RevCommit tip;
+
+    @Before
+    public void setUp() throws Exception {
+        git = Git.init().setDirectory(folder.newFolder("workspace")).call();
+        TestRepositories.commit(git, "file.txt", "base\n", "base");
+        git.branchCreate().setName("ready").call();
+        tip = TestRepositories.commit(git, "file.txt", "master\n", "master");
+        git.checkout().setName("ready").call();
+        TestRepositories.commit(git, "file.txt", "ready\n", "ready");
+        TestRepositories.commit(git, "added/nested/new.txt", "new\n", "ready adds a file");
+        git.checkout().setName("master").call();
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    @Test
+    public void clearsTheConflictStagesOfAFailedMerge() throws Exception {
+        Repository repo = git.getRepository();
+        MergeResult merged = git.merge().include(repo.resolve("ready")).call();
+        assertEquals(MergeResult.MergeStatus.CONFLICTING, merged.getMergeStatus());
+        assertTrue(TestRepositories.hasUnmerged(repo.readDirCache()));
+
+        JGitBackend.Result result = new PathRollback(tip.name()).invoke(repo, null);
+
+        assertEquals(result.output, 0, result.exitCode);
+        DirCache index = repo.readDirCache();
+        assertFalse(TestRepositories.hasUnmerged(index));
+        assertEquals(1, index.getEntryCount());
+        assertEquals(repo.resolve(tip.name() + ":file.txt"), index.getEntry("file.txt").getObjectId());
+        assertEquals("master\n", TestRepositories.read(git, "file.txt"));
+        assertNull(repo.readMergeHeads());
+    }
+
+    @Test
+    public void deletesTheDirectoriesLeftEmpty() throws Exception {
+        Repository repo = git.getRepository();
+        git.merge().include(repo.resolve("ready")).call();
+        assertTrue(new File(repo.getWorkTree(), "added/nested/new.txt").isFile());
+
+        new PathRollback(tip.name()).invoke(repo, null);
+
+        assertFalse(new File(repo.getWorkTree(), "added").exists());
+        assertTrue(repo.getWorkTree().isDirectory());
+    }
+
+    @Test
+    public void movesTheBranchBackAndLeavesOtherFilesAlone() throws Exception {
+        Repository repo = git.getRepository();
+        TestRepositories.commit(git, "file.txt", "integrated\n", "Integrated ready");
+        File written = new File(repo.getWorkTree(), "build/output.log");
+        written.getParentFile().mkdirs();
+        assertTrue(written.createNewFile());
+
+        JGitBackend.Result result = new PathRollback(tip.name()).invoke(repo, null);
+
+        assertEquals(result.output, 0, result.exitCode);
+        assertEquals(tip.getId(), repo.resolve(Constants.HEAD));
+        assertEquals("master\n", TestRepositories.read(git, "file.txt"));
+        assertTrue(written.isFile());
+    }
+}
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.FreeStyleProject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class RefIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git clone;
+    private AbstractBuild<?, ?> build;
+    private GitClient client;
+    private GitBackend backend;
+
+    @Before
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void setUp() throws Exception {
+        File origin = folder.newFolder("origin");
+        Git remote = Git.init().setDirectory(origin).call();
+        try {
+            TestRepositories.commit(remote, "file.txt", "base\n", "base");
+            remote.branchCreate().setName("ready/b").call();
+            remote.branchCreate().setName("ready/a").call();
+        } finally {
+            remote.getRepository().close();
+        }
+        File workspace = folder.newFolder("workspace");
+        clone = Git.cloneRepository().setURI(origin.toURI().toString()).setDirectory(workspace).call();
+
+        final Repository repo = clone.getRepository();
+        client = mock(GitClient.class);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((RepositoryCallback) invocation.getArguments()[0]).invoke(repo, null);
+            }
+        }).when(client).withRepository(any(RepositoryCallback.class));
+        backend = mock(GitBackend.class);
+        doReturn(client).when(backend).client();
+
+        AbstractBuild mocked = mock(AbstractBuild.class);
+        doReturn(new FilePath(workspace)).when(mocked).getWorkspace();
+        doReturn("").when(mocked).getBuiltOnStr();
+        doReturn(mock(FreeStyleProject.class)).when(mocked).getParent();
+        build = mocked;
+    }
+
+    @After
+    public void tearDown() {
+        RefIndex.invalidate(build);
+        clone.getRepository().close();
+    }
+
+    @Test
+    public void readsLocalAndRemoteTrackingBranches() throws Exception {
+        RefIndex refs = RefIndex.of(build, backend);
+        String master = clone.getRepository().resolve("master").name();
+
+        assertEquals(master, refs.getLocalBranch("master"));
+        assertNull(refs.getLocalBranch("ready/a"));
+        assertEquals(master, refs.getRemoteBranch("origin/ready/a"));
+        assertEquals(Arrays.asList("origin/master", "origin/ready/a", "origin/ready/b"), new ArrayList<String>(refs.getRemoteBranches().keySet()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void readsTheRefsOnceUntilInvalidated() throws Exception {
+        RefIndex first = RefIndex.of(build, backend);
+        assertSame(first, RefIndex.of(build, backend));
+        verify(client, times(1)).withRepository(any(RepositoryCallback.class));
+
+        RefIndex.invalidate(build);
+        RefIndex.of(build, backend);
+        verify(client, times(2)).withRepository(any(RepositoryCallback.class));
+    }
+}
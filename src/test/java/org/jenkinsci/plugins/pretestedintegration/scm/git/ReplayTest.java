@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplayTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git git;
+    private RevCommit base;
+    private RevCommit integrated;
+
+    @Before
+    public void setUp() throws Exception {
+        git = Git.init().setDirectory(folder.newFolder("workspace")).call();
+        base = TestRepositories.commit(git, "file.txt", "base\n", "base");
+        git.branchCreate().setName("moved").call();
+        integrated = TestRepositories.commit(git, "feature.txt", "feature\n", "Integrated ready/feature");
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    private RevCommit moveTarget(String path, String content) throws Exception {
+        git.checkout().setName("moved").call();
+        RevCommit moved = TestRepositories.commit(git, path, content, "landed meanwhile");
+        git.checkout().setName("master").call();
+        return moved;
+    }
+
+    @Test
+    public void doesNothingWhenTheTargetDidNotMove() throws Exception {
+        Replay.Result result = new Replay(base.name(), "moved").invoke(git.getRepository(), null);
+
+        assertEquals(Replay.Status.NOT_MOVED, result.status);
+        assertNull(result.sha1);
+        assertEquals(integrated.getId(), git.getRepository().resolve(Constants.HEAD));
+    }
+
+    @Test
+    public void replaysOntoTheMovedTarget() throws Exception {
+        Repository repo = git.getRepository();
+        RevCommit moved = moveTarget("other.txt", "other\n");
+
+        Replay.Result result = new Replay(base.name(), "moved").invoke(repo, null);
+
+        assertEquals(Replay.Status.REPLAYED, result.status);
+        assertEquals(moved.name(), result.expected);
+        assertEquals(result.sha1, repo.resolve(Constants.HEAD).name());
+        RevWalk walk = new RevWalk(repo);
+        try {
+            RevCommit replayed = walk.parseCommit(repo.resolve(Constants.HEAD));
+            assertEquals(1, replayed.getParentCount());
+            assertEquals(moved, replayed.getParent(0));
+            assertEquals(integrated.getFullMessage(), replayed.getFullMessage());
+        } finally {
+            walk.release();
+        }
+        assertEquals("feature\n", TestRepositories.read(git, "feature.txt"));
+        assertEquals("other\n", TestRepositories.read(git, "other.txt"));
+        assertTrue(git.status().call().isClean());
+    }
+
+    @Test
+    public void refusesWhenTheChangesTouchTheSamePaths() throws Exception {
+        Repository repo = git.getRepository();
+        moveTarget("feature.txt", "feature\n");
+
+        Replay.Result result = new Replay(base.name(), "moved").invoke(repo, null);
+
+        assertEquals(Replay.Status.OVERLAP, result.status);
+        assertEquals(1, result.paths.size());
+        assertEquals("feature.txt", result.paths.get(0));
+        assertEquals(integrated.getId(), repo.resolve(Constants.HEAD));
+    }
+}
@@ -0,0 +1,129 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import hudson.model.AbstractBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpeculationQueueTest {
+
+    private static final String KEY = "file:///origin.git#master";
+
+    private TaskListener listener;
+    private final List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+
+    @Before
+    public void setUp() {
+        listener = mock(TaskListener.class);
+        doReturn(new PrintStream(new ByteArrayOutputStream())).when(listener).getLogger();
+    }
+
+    @After
+    public void tearDown() {
+        for (AbstractBuild<?, ?> build : builds) {
+            SpeculationQueue.leave(build);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private AbstractBuild<?, ?> build(int number) {
+        FreeStyleProject project = mock(FreeStyleProject.class);
+        doReturn("job").when(project).getFullName();
+        AbstractBuild build = mock(AbstractBuild.class);
+        doReturn(project).when(build).getParent();
+        doReturn(number).when(build).getNumber();
+        builds.add(build);
+        return build;
+    }
+
+    @Test
+    public void integratesOnTheCandidateAhead() throws Exception {
+        AbstractBuild<?, ?> first = build(1);
+        AbstractBuild<?, ?> second = build(2);
+
+        assertNull(SpeculationQueue.join(first, KEY, 2, listener));
+        SpeculationQueue.integrated(first, "a");
+        assertEquals("a", SpeculationQueue.join(second, KEY, 2, listener));
+        SpeculationQueue.integrated(second, "ab");
+
+        assertTrue(SpeculationQueue.awaitTurn(first, listener));
+        SpeculationQueue.pushed(first);
+        assertTrue(SpeculationQueue.awaitTurn(second, listener));
+    }
+
+    @Test
+    public void dropsTheCandidatesBuiltOnAFailure() throws Exception {
+        AbstractBuild<?, ?> first = build(1);
+        AbstractBuild<?, ?> second = build(2);
+        AbstractBuild<?, ?> third = build(3);
+
+        SpeculationQueue.join(first, KEY, 3, listener);
+        SpeculationQueue.integrated(first, "a");
+        SpeculationQueue.join(second, KEY, 3, listener);
+        SpeculationQueue.integrated(second, "ab");
+        assertEquals("ab", SpeculationQueue.join(third, KEY, 3, listener));
+
+        SpeculationQueue.dropped(first);
+        assertFalse(SpeculationQueue.awaitTurn(second, listener));
+        SpeculationQueue.dropped(second);
+        assertFalse(SpeculationQueue.awaitTurn(third, listener));
+    }
+
+    @Test
+    public void skipsCandidatesThatIntegratedNothing() throws Exception {
+        AbstractBuild<?, ?> first = build(1);
+        AbstractBuild<?, ?> second = build(2);
+        AbstractBuild<?, ?> third = build(3);
+
+        SpeculationQueue.join(first, KEY, 3, listener);
+        SpeculationQueue.integrated(first, "a");
+        SpeculationQueue.join(second, KEY, 3, listener);
+        SpeculationQueue.leave(second);
+
+        assertEquals("a", SpeculationQueue.join(third, KEY, 3, listener));
+        SpeculationQueue.pushed(first);
+        assertTrue(SpeculationQueue.awaitTurn(third, listener));
+    }
+
+    @Test
+    public void waitsForTheCandidatesAheadToBePushed() throws Exception {
+        final AbstractBuild<?, ?> first = build(1);
+        AbstractBuild<?, ?> second = build(2);
+        SpeculationQueue.join(first, KEY, 2, listener);
+        SpeculationQueue.integrated(first, "a");
+        SpeculationQueue.join(second, KEY, 2, listener);
+        SpeculationQueue.integrated(second, "ab");
+
+        Thread pusher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                SpeculationQueue.pushed(first);
+            }
+        };
+        pusher.start();
+        long start = System.currentTimeMillis();
+        assertTrue(SpeculationQueue.awaitTurn(second, listener));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        pusher.join();
+    }
+}
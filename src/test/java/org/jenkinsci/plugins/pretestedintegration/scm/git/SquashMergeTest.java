@@ -0,0 +1,136 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SquashMergeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git git;
+    private RevCommit tip;
+
+    @Before
+    public void setUp() throws Exception {
+        git = Git.init().setDirectory(folder.newFolder("workspace")).call();
+        tip = TestRepositories.commit(git, "file.txt", "base\n", "base");
+        git.branchCreate().setName("ready").call();
+        git.checkout().setName("ready").call();
+        TestRepositories.commit(git, "feature.txt", "one\n", "feature one");
+        TestRepositories.commit(git, "feature.txt", "two\n", "feature two");
+        git.checkout().setName("master").call();
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    @Test
+    public void squashesTheRevisionIntoOneCommit() throws Exception {
+        Repository repo = git.getRepository();
+        SquashMerge.Result result = new SquashMerge("ready", "Integrated ready").invoke(repo, null);
+
+        assertEquals(SquashMerge.Status.COMMITTED, result.status);
+        assertEquals(result.sha1, repo.resolve(Constants.HEAD).name());
+        RevWalk walk = new RevWalk(repo);
+        try {
+            RevCommit squashed = walk.parseCommit(repo.resolve(Constants.HEAD));
+            assertEquals(1, squashed.getParentCount());
+            assertEquals(tip, squashed.getParent(0));
+            assertEquals("Integrated ready", squashed.getFullMessage());
+        } finally {
+            walk.release();
+        }
+        assertEquals("two\n", TestRepositories.read(git, "feature.txt"));
+        assertTrue(git.status().call().isClean());
+    }
+
+    @Test
+    public void recordsTheRevisionAsParent() throws Exception {
+        Repository repo = git.getRepository();
+        SquashMerge.Result result = new SquashMerge("ready", "Integrated ready", true).invoke(repo, null);
+
+        assertEquals(SquashMerge.Status.COMMITTED, result.status);
+        RevWalk walk = new RevWalk(repo);
+        try {
+            RevCommit merge = walk.parseCommit(repo.resolve(Constants.HEAD));
+            assertEquals(2, merge.getParentCount());
+            assertEquals(repo.resolve("ready"), merge.getParent(1));
+        } finally {
+            walk.release();
+        }
+    }
+
+    @Test
+    public void reportsConflictsWithoutMovingTheBranch() throws Exception {
+        Repository repo = git.getRepository();
+        RevCommit moved = TestRepositories.commit(git, "feature.txt", "master\n", "master");
+
+        SquashMerge.Result result = new SquashMerge("ready", "Integrated ready").invoke(repo, null);
+
+        assertEquals(SquashMerge.Status.CONFLICT, result.status);
+        assertNull(result.sha1);
+        assertEquals(1, result.conflicts.size());
+        assertEquals("feature.txt", result.conflicts.get(0));
+        assertEquals(moved.getId(), repo.resolve(Constants.HEAD));
+        assertEquals("master\n", TestRepositories.read(git, "feature.txt"));
+    }
+
+    @Test
+    public void hasNothingToDoWhenAlreadyIntegrated() throws Exception {
+        Repository repo = git.getRepository();
+        assertEquals(SquashMerge.Status.COMMITTED, new SquashMerge("ready", "Integrated ready").invoke(repo, null).status);
+        ObjectId integrated = repo.resolve(Constants.HEAD);
+
+        SquashMerge.Result result = new SquashMerge("ready", "Integrated ready again").invoke(repo, null);
+
+        assertEquals(SquashMerge.Status.NOTHING_TO_DO, result.status);
+        assertEquals(integrated, repo.resolve(Constants.HEAD));
+    }
+
+    @Test
+    public void recordsTheMergeWhenTheTreeIsUnchanged() throws Exception {
+        Repository repo = git.getRepository();
+        RevCommit same = TestRepositories.commit(git, "feature.txt", "two\n", "same change on master");
+
+        SquashMerge.Result result = new SquashMerge("ready", "Integrated ready", true).invoke(repo, null);
+
+        assertEquals(SquashMerge.Status.COMMITTED, result.status);
+        RevWalk walk = new RevWalk(repo);
+        try {
+            RevCommit merge = walk.parseCommit(repo.resolve(Constants.HEAD));
+            assertEquals(2, merge.getParentCount());
+            assertEquals(same, merge.getParent(0));
+            assertEquals(same.getTree(), merge.getTree());
+        } finally {
+            walk.release();
+        }
+    }
+
+    @Test
+    public void hasNothingToDoWhenTheRecordedParentIsMerged() throws Exception {
+        Repository repo = git.getRepository();
+        assertEquals(SquashMerge.Status.COMMITTED, new SquashMerge("ready", "Integrated ready", true).invoke(repo, null).status);
+        ObjectId integrated = repo.resolve(Constants.HEAD);
+
+        SquashMerge.Result result = new SquashMerge("ready", "Integrated ready again", true).invoke(repo, null);
+
+        assertEquals(SquashMerge.Status.NOTHING_TO_DO, result.status);
+        assertEquals(integrated, repo.resolve(Constants.HEAD));
+    }
+}
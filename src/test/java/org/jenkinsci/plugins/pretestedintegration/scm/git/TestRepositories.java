@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Builds the small repositories the tests integrate in.
+ */
+final class TestRepositories {
+
+    private TestRepositories() { }
+
+    /**
+     * Write the file and commit it on the checked out branch.
+     */
+    static RevCommit commit(Git git, String path, String content, String message) throws Exception {
+        File file = new File(git.getRepository().getWorkTree(), path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        git.add().addFilepattern(path).call();
+        return git.commit().setMessage(message).call();
+    }
+
+    static String read(Git git, String path) throws IOException {
+        return FileUtils.readFileToString(new File(git.getRepository().getWorkTree(), path), "UTF-8");
+    }
+
+    /**
+     * @return true if the index has entries in the conflict stages
+     */
+    static boolean hasUnmerged(DirCache index) {
+        for (int i = 0; i < index.getEntryCount(); i++) {
+            if (index.getEntry(i).getStage() != DirCacheEntry.STAGE_0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
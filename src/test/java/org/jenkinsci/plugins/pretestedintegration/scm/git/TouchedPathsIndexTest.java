@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.pretestedintegration.scm.git;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TouchedPathsIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Git git;
+    private RevCommit base;
+    private RevCommit tip;
+    private LinkedHashMap<String, String> pending;
+
+    @Before
+    public void setUp() throws Exception {
+        git = Git.init().setDirectory(folder.newFolder("workspace")).call();
+        base = TestRepositories.commit(git, "shared.txt", "base\n", "base");
+        tip = TestRepositories.commit(git, "shared.txt", "integrated\n", "integrated meanwhile");
+
+        pending = new LinkedHashMap<String, String>();
+        pending.put("ready/a", branch("ready/a", "shared.txt"));
+        pending.put("ready/b", branch("ready/b", "x.txt"));
+        pending.put("ready/c", branch("ready/c", "x.txt"));
+        pending.put("ready/d", branch("ready/d", "src/z.txt"));
+    }
+
+    @After
+    public void tearDown() {
+        git.getRepository().close();
+    }
+
+    private String branch(String name, String path) throws Exception {
+        git.checkout().setCreateBranch(true).setName(name).setStartPoint(base).call();
+        return TestRepositories.commit(git, path, name + "\n", name).name();
+    }
+
+    private Map<String, TouchedPathsIndex.Entry> entries() throws Exception {
+        return new TouchedPathsIndex.TouchedPaths(tip.name(), new HashMap<String, String>(pending)).invoke(git.getRepository(), null);
+    }
+
+    @Test
+    public void recordsThePathsEachBranchChangesAndTheOverlapWithTheTip() throws Exception {
+        Map<String, TouchedPathsIndex.Entry> entries = entries();
+
+        assertEquals(new TreeSet<String>(Arrays.asList("shared.txt")), entries.get("ready/a").paths);
+        assertEquals(1, entries.get("ready/a").tipOverlap);
+        assertEquals(new TreeSet<String>(Arrays.asList("src/z.txt")), entries.get("ready/d").paths);
+        assertEquals(0, entries.get("ready/d").tipOverlap);
+        assertEquals(tip.name(), entries.get("ready/d").tip);
+    }
+
+    @Test
+    public void putsTheBranchesLeastLikelyToConflictFirst() throws Exception {
+        LinkedHashMap<String, String> ordered = TouchedPathsIndex.order(entries(), pending, null);
+
+        assertEquals(Arrays.asList("ready/b", "ready/d", "ready/c", "ready/a"), new ArrayList<String>(ordered.keySet()));
+        assertEquals(pending.get("ready/c"), ordered.get("ready/c"));
+    }
+
+    @Test
+    public void keepsTheFirstBranchFirst() throws Exception {
+        LinkedHashMap<String, String> ordered = TouchedPathsIndex.order(entries(), pending, "ready/a");
+
+        assertEquals(Arrays.asList("ready/a", "ready/b", "ready/d", "ready/c"), new ArrayList<String>(ordered.keySet()));
+    }
+}